@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.salesforce.zsync.ZsyncMake;
+import com.salesforce.zsync.internal.util.RollingBuffer;
+import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+import com.salesforce.zsync.internal.util.ZeroPaddedReadableByteChannel;
+
+/**
+ * Scanning an input file for blocks of the target with the single and double block matchers, skipping over misses as
+ * the sequential scan does. The input consists of the target's blocks, each replaced by a block and a byte of noise
+ * with probability one minus the match ratio, so that matches are not aligned to the block size after the first miss.
+ * Each invocation matches into a fresh output file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BlockMatcherBenchmark {
+
+  @Param({ "false", "true" })
+  public boolean seqMatches;
+
+  @Param({ "0.0", "0.5", "1.0" })
+  public double matchRatio;
+
+  @Param({ "1048576", "16777216" })
+  public int fileSize;
+
+  @Param({ "2048" })
+  public int blockSize;
+
+  private ControlFile controlFile;
+  private byte[] input;
+  private Path output;
+  private OutputFileWriter writer;
+
+  @Setup
+  public void setUp() throws IOException {
+    final Random random = new Random(42);
+    final byte[] target = new byte[this.fileSize];
+    random.nextBytes(target);
+    final ByteArrayOutputStream input = new ByteArrayOutputStream();
+    final byte[] noise = new byte[this.blockSize + 1];
+    for (int i = 0; i < target.length; i += this.blockSize) {
+      if (random.nextDouble() < this.matchRatio) {
+        input.write(target, i, Math.min(this.blockSize, target.length - i));
+      } else {
+        random.nextBytes(noise);
+        input.write(noise, 0, noise.length);
+      }
+    }
+    this.input = input.toByteArray();
+    final Path targetFile = Files.createTempFile("target", null);
+    try {
+      Files.write(targetFile, target);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new ZsyncMake().writeToStream(targetFile, out, new ZsyncMake.Options().setBlockSize(this.blockSize));
+      final ControlFile c = ControlFile.read(new ByteArrayInputStream(out.toByteArray()));
+      final Header h = c.getHeader();
+      this.controlFile = new ControlFile(new Header(h.getVersion(), h.getFilename(), h.getMtime(), h.getBlocksize(),
+          h.getLength(), h.getChecksumBytes(), h.getRsumBytes(), this.seqMatches, h.getUrl(), h.getSha1()),
+          c.getBlockSums());
+    } finally {
+      Files.delete(targetFile);
+    }
+    this.output = Files.createTempFile("output", null);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(this.output);
+  }
+
+  @Setup(Level.Invocation)
+  public void openOutput() throws IOException {
+    this.writer = new OutputFileWriter(this.output, this.controlFile, new ResourceTransferListener<Path>() {
+      @Override
+      public void start(Path resource, long length) {}
+
+      @Override
+      public void transferred(long bytes) {}
+
+      @Override
+      public void close() {}
+    });
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeOutput() throws IOException {
+    try {
+      this.writer.close();
+    } catch (ChecksumValidationIOException e) {
+      // expected unless every block matched
+    } finally {
+      Files.deleteIfExists(this.output.resolveSibling(this.output.getFileName() + ".part"));
+    }
+  }
+
+  @Benchmark
+  public long match() throws IOException {
+    final BlockMatcher matcher = BlockMatcher.create(this.controlFile);
+    final int windowSize = matcher.getMatcherBlockSize();
+    final int lastBlockSize = this.input.length % this.blockSize;
+    final RollingBuffer buffer =
+        new RollingBuffer(new ZeroPaddedReadableByteChannel(Channels.newChannel(new ByteArrayInputStream(this.input)),
+            lastBlockSize == 0 ? 0 : this.blockSize - lastBlockSize), windowSize, 16 * windowSize);
+    int bytes;
+    do {
+      matcher.skip(this.writer, buffer, Integer.MAX_VALUE);
+      bytes = matcher.match(this.writer, buffer);
+    } while (buffer.advance(bytes));
+    return matcher.getBlocksWritten();
+  }
+
+}
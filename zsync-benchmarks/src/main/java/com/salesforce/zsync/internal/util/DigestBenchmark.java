@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Strong checksums of a single block: {@link MD4Digest} on arrays, on the window of a rolling buffer and on lanes of
+ * blocks at once, compared with the {@link MessageDigest} path previously used for block checksums and with SHA-1 as
+ * used for validating whole files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DigestBenchmark {
+
+  @Param({ "512", "2048", "8192" })
+  public int blockSize;
+
+  private byte[] block;
+  private byte[] output;
+  private byte[] sha1Output;
+  private byte[] laneOutput;
+  private int[] laneOffsets;
+  private RollingBuffer buffer;
+  private MD4Digest digest;
+  private MessageDigest md4;
+  private MessageDigest sha1;
+
+  @Setup
+  public void setUp() throws IOException {
+    this.block = new byte[this.blockSize];
+    new Random(42).nextBytes(this.block);
+    this.output = new byte[MD4Digest.DIGEST_LENGTH];
+    this.laneOutput = new byte[MD4Digest.LANES * MD4Digest.DIGEST_LENGTH];
+    this.laneOffsets = new int[MD4Digest.LANES];
+    this.buffer = new RollingBuffer(Channels.newChannel(new ByteArrayInputStream(this.block)), this.blockSize,
+        2 * this.blockSize);
+    this.digest = new MD4Digest();
+    this.md4 = ZsyncUtil.newMD4();
+    this.sha1 = ZsyncUtil.newSHA1();
+    this.sha1Output = new byte[this.sha1.getDigestLength()];
+  }
+
+  @Benchmark
+  public byte[] md4MessageDigest() throws DigestException {
+    this.md4.update(this.block, 0, this.blockSize);
+    this.md4.digest(this.output, 0, this.output.length);
+    return this.output;
+  }
+
+  @Benchmark
+  public byte[] md4() {
+    this.digest.digest(this.block, 0, this.blockSize, this.output, 0, this.output.length);
+    return this.output;
+  }
+
+  @Benchmark
+  public byte[] md4Buffer() throws IOException {
+    this.digest.digest(this.buffer, 0, this.blockSize, this.output, 0, this.output.length);
+    return this.output;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MD4Digest.LANES)
+  public byte[] md4Lanes() {
+    this.digest.digest(this.block, this.laneOffsets, MD4Digest.LANES, this.blockSize, this.laneOutput,
+        MD4Digest.DIGEST_LENGTH);
+    return this.laneOutput;
+  }
+
+  @Benchmark
+  public byte[] sha1() throws DigestException {
+    this.sha1.update(this.block, 0, this.blockSize);
+    this.sha1.digest(this.sha1Output, 0, this.sha1Output.length);
+    return this.sha1Output;
+  }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+import com.salesforce.zsync.http.ContentRange;
+
+/**
+ * Parsing the part headers of a multipart byte ranges response, skipping over the part data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultipartBenchmark {
+
+  private static final String BOUNDARY = "3d6b6a416f9b5";
+
+  @Param({ "16", "256" })
+  public int parts;
+
+  @Param({ "2048", "65536" })
+  public int partSize;
+
+  private byte[] boundary;
+  private byte[] body;
+
+  @Setup
+  public void setUp() throws IOException {
+    this.boundary = BOUNDARY.getBytes(ISO_8859_1);
+    final long total = 2L * this.parts * this.partSize;
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] data = new byte[this.partSize];
+    for (int i = 0; i < this.parts; i++) {
+      final long first = 2L * i * this.partSize;
+      final String header = (i == 0 ? "" : "\r\n") + "--" + BOUNDARY
+          + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes " + first + "-"
+          + (first + this.partSize - 1) + "/" + total + "\r\n\r\n";
+      out.write(header.getBytes(ISO_8859_1));
+      out.write(data);
+    }
+    out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(ISO_8859_1));
+    this.body = out.toByteArray();
+  }
+
+  @Benchmark
+  public long nextPart() throws IOException {
+    final InputStream in = new ByteArrayInputStream(this.body);
+    long length = 0;
+    ContentRange range;
+    while ((range = HttpClient.nextPart(in, this.boundary)) != null) {
+      ByteStreams.skipFully(in, range.length());
+      length += range.length();
+    }
+    return length;
+  }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rolling a window over 16MB read from a channel, either a byte at a time as when scanning for matches or a window at
+ * a time as after matching blocks, including refilling the buffer from the channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RollingBufferBenchmark {
+
+  private static final int DATA_SIZE = 16 * 1024 * 1024;
+
+  @Param({ "512", "2048", "8192" })
+  public int windowSize;
+
+  @Param({ "16" })
+  public int buffersPerWindow;
+
+  private byte[] data;
+
+  @Setup
+  public void setUp() {
+    this.data = new byte[DATA_SIZE];
+    new Random(42).nextBytes(this.data);
+  }
+
+  @Benchmark
+  public int advanceByte() throws IOException {
+    final RollingBuffer buffer = this.newBuffer();
+    int h = 0;
+    do {
+      h += buffer.get(0);
+    } while (buffer.advance(1));
+    return h;
+  }
+
+  @Benchmark
+  public int advanceWindow() throws IOException {
+    final RollingBuffer buffer = this.newBuffer();
+    int h = 0;
+    do {
+      h += buffer.get(0);
+    } while (buffer.advance(this.windowSize));
+    return h;
+  }
+
+  private RollingBuffer newBuffer() throws IOException {
+    return new RollingBuffer(Channels.newChannel(new ByteArrayInputStream(this.data)), this.windowSize,
+        this.buffersPerWindow * this.windowSize);
+  }
+
+}
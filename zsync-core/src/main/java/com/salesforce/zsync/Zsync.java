@@ -28,7 +28,9 @@ import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileSystem;
@@ -38,21 +40,45 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
 import com.salesforce.zsync.ZsyncStatsObserver.ZsyncStats;
+import com.salesforce.zsync.http.ContentRange;
 import com.salesforce.zsync.http.Credentials;
+import com.salesforce.zsync.internal.AlignedBlockScanner;
 import com.salesforce.zsync.internal.BlockMatcher;
+import com.salesforce.zsync.internal.BlockSumsFile;
 import com.salesforce.zsync.internal.ChecksumValidationIOException;
 import com.salesforce.zsync.internal.ControlFile;
 import com.salesforce.zsync.internal.EventDispatcher;
 import com.salesforce.zsync.internal.Header;
+import com.salesforce.zsync.internal.InputFileSampler;
 import com.salesforce.zsync.internal.OutputFileWriter;
+import com.salesforce.zsync.internal.ParallelBlockScanner;
 import com.salesforce.zsync.internal.util.HttpClient;
+import com.salesforce.zsync.internal.util.MappedRollingBuffer;
 import com.salesforce.zsync.internal.util.ObservableInputStream;
+import com.salesforce.zsync.internal.util.RangeCoalescer;
 import com.salesforce.zsync.internal.util.RollingBuffer;
+import com.salesforce.zsync.internal.util.TransferListener;
 import com.salesforce.zsync.internal.util.ZeroPaddedReadableByteChannel;
 import com.salesforce.zsync.internal.util.ZsyncUtil;
 import com.salesforce.zsync.internal.util.HttpClient.HttpError;
@@ -83,10 +109,21 @@ public class Zsync {
   public static class Options {
 
     private List<Path> inputFiles = new ArrayList<>(2);
+    private Map<Path, ByteSource> inputSources = new HashMap<>(2);
     private Path outputFile;
     private Path saveZsyncFile;
     private URI zsyncUri;
     private Map<String, Credentials> credentials = new HashMap<>(2);
+    private Map<String, Integer> concurrentRangeRequests = new HashMap<>(2);
+    private int scanParallelism = 1;
+    private int concurrentInputFiles = 1;
+    private boolean matchAlignedBlocksFirst = true;
+    private int inputFileSamples = 0;
+    private boolean saveBlockSums = false;
+    private boolean sparseZeroBlocks = false;
+    private boolean preallocateOutputFile = false;
+    private long remoteRoundTripMillis = 0;
+    private long remoteBytesPerSecond = 0;
 
     public Options() {
       super();
@@ -95,10 +132,21 @@ public class Zsync {
     public Options(Options other) {
       if (other != null) {
         this.inputFiles.addAll(other.getInputFiles());
+        this.inputSources.putAll(other.inputSources);
         this.outputFile = other.outputFile;
         this.saveZsyncFile = other.saveZsyncFile;
         this.zsyncUri = other.zsyncUri;
         this.credentials.putAll(other.credentials);
+        this.concurrentRangeRequests.putAll(other.concurrentRangeRequests);
+        this.scanParallelism = other.scanParallelism;
+        this.concurrentInputFiles = other.concurrentInputFiles;
+        this.matchAlignedBlocksFirst = other.matchAlignedBlocksFirst;
+        this.inputFileSamples = other.inputFileSamples;
+        this.saveBlockSums = other.saveBlockSums;
+        this.sparseZeroBlocks = other.sparseZeroBlocks;
+        this.preallocateOutputFile = other.preallocateOutputFile;
+        this.remoteRoundTripMillis = other.remoteRoundTripMillis;
+        this.remoteBytesPerSecond = other.remoteBytesPerSecond;
       }
     }
 
@@ -114,6 +162,52 @@ public class Zsync {
       return this;
     }
 
+    /**
+     * Adds an input file whose content is read from the given source in a single streaming pass rather than from the
+     * file system, e.g. an input file stored inside an archive. The path identifies the input file in events and
+     * statistics and need not exist. Streamed input files are neither matched at aligned offsets first nor scanned in
+     * parallel segments.
+     *
+     * @param inputFile
+     * @param source
+     * @return
+     */
+    public Options addInputSource(Path inputFile, ByteSource source) {
+      if (source == null) {
+        throw new IllegalArgumentException("source must not be null");
+      }
+      this.inputFiles.add(inputFile);
+      this.inputSources.put(inputFile, source);
+      return this;
+    }
+
+    /**
+     * Adds a gzip or xz compressed input file, which is decompressed while it is scanned instead of being expanded on
+     * disk first. See {@link #addInputSource(Path, ByteSource)}.
+     *
+     * @param inputFile
+     * @return
+     */
+    public Options addCompressedInputFile(final Path inputFile) {
+      return this.addInputSource(inputFile, new ByteSource() {
+        @Override
+        public InputStream openStream() throws IOException {
+          return ZsyncUtil.decompress(Files.newInputStream(inputFile));
+        }
+      });
+    }
+
+    /**
+     * Source from which the content of the given input file is streamed, or null if the input file is read from the
+     * file system
+     *
+     * @param inputFile
+     * @return
+     */
+    public ByteSource getInputSource(Path inputFile) {
+      return this.inputSources.get(inputFile);
+    }
+
     /**
      * Input files to construct output file from. If empty and the output file does not yet exist, the full content is
      * retrieved from the remote location.
@@ -222,11 +316,267 @@ public class Zsync {
       return this.credentials;
     }
 
+    /**
+     * Sets the number of range requests for missing parts of the remote file that are issued concurrently to the given
+     * host, each over its own connection from the http client's pool. Missing ranges are split into that many requests
+     * or more, balanced by size, and the largest are issued first, so that throughput over links with a long round
+     * trip time is not bound by one request at a time. Observers see the concurrent requests as one download of all
+     * missing ranges, so that its elapsed time and bandwidth in {@link ZsyncStats} stay meaningful. Hosts not
+     * registered get one request at a time.
+     *
+     * @param hostname
+     * @param requests
+     * @return
+     */
+    public Options putConcurrentRangeRequests(String hostname, int requests) {
+      if (requests < 1) {
+        throw new IllegalArgumentException("concurrent range requests must be positive: " + requests);
+      }
+      this.concurrentRangeRequests.put(hostname, requests);
+      return this;
+    }
+
+    /**
+     * Registered numbers of concurrent range requests by host name
+     *
+     * @return
+     */
+    public Map<String, Integer> getConcurrentRangeRequests() {
+      return this.concurrentRangeRequests;
+    }
+
+    /**
+     * Number of threads with which to scan a single input file for matching blocks. Input files are split into
+     * segments that are scanned concurrently on a fork/join pool of the given parallelism. Every block matched by a
+     * sequential scan is matched by the parallel scan as well. Defaults to 1, i.e. sequential scanning.
+     *
+     * @param scanParallelism
+     * @return
+     */
+    public Options setScanParallelism(int scanParallelism) {
+      if (scanParallelism < 1) {
+        throw new IllegalArgumentException("scan parallelism must be a positive integer: " + scanParallelism);
+      }
+      this.scanParallelism = scanParallelism;
+      return this;
+    }
+
+    /**
+     * Number of threads with which to scan a single input file
+     *
+     * @return
+     */
+    public int getScanParallelism() {
+      return this.scanParallelism;
+    }
+
+    /**
+     * Maximum number of input files to scan for matching blocks at the same time. Concurrently scanned input files
+     * share the target file's block map, so that each block is copied only once, and all of them stop scanning as soon
+     * as the target file is complete. Observer events for each input file are delivered in one uninterrupted sequence
+     * once the input file has been scanned. Defaults to 1, i.e. input files are scanned one after the other.
+     *
+     * @param concurrentInputFiles
+     * @return
+     */
+    public Options setConcurrentInputFiles(int concurrentInputFiles) {
+      if (concurrentInputFiles < 1) {
+        throw new IllegalArgumentException("concurrent input files must be a positive integer: "
+            + concurrentInputFiles);
+      }
+      this.concurrentInputFiles = concurrentInputFiles;
+      return this;
+    }
+
+    /**
+     * Maximum number of input files to scan at the same time
+     *
+     * @return
+     */
+    public int getConcurrentInputFiles() {
+      return this.concurrentInputFiles;
+    }
+
+    /**
+     * Whether to compare each block-aligned offset of an input file with the target block at the same position before
+     * scanning it byte by byte. The rolling scan then skips offsets within runs of blocks matched in place, which makes
+     * previous versions of the target cheap to process. Defaults to true.
+     *
+     * @param matchAlignedBlocksFirst
+     * @return
+     */
+    public Options setMatchAlignedBlocksFirst(boolean matchAlignedBlocksFirst) {
+      this.matchAlignedBlocksFirst = matchAlignedBlocksFirst;
+      return this;
+    }
+
+    /**
+     * Whether to match blocks at aligned offsets before the rolling scan
+     *
+     * @return
+     */
+    public boolean isMatchAlignedBlocksFirst() {
+      return this.matchAlignedBlocksFirst;
+    }
+
+    /**
+     * Number of regions of each input file to probe for blocks of the target before scanning any of them. If positive,
+     * input files are scanned in descending order of the number of regions holding a target block, so that the most
+     * similar ones complete most of the target first, and input files without any such region are not scanned at all.
+     * Input files read from a source are not probed and are scanned after those that were. Defaults to 0, i.e. input
+     * files are scanned in the order given.
+     *
+     * @param inputFileSamples
+     * @return
+     */
+    public Options setInputFileSamples(int inputFileSamples) {
+      if (inputFileSamples < 0) {
+        throw new IllegalArgumentException("input file samples must not be negative: " + inputFileSamples);
+      }
+      this.inputFileSamples = inputFileSamples;
+      return this;
+    }
+
+    /**
+     * Number of regions of each input file to probe before scanning
+     *
+     * @return
+     */
+    public int getInputFileSamples() {
+      return this.inputFileSamples;
+    }
+
+    /**
+     * Whether to store the block sums of the output file next to it, keyed by its size and modification time, once it
+     * has been synced. The next sync to the same output file then matches the output file's aligned blocks against the
+     * new control file by looking up the stored block sums, without reading the output file, and the rolling scan skips
+     * runs of blocks matched that way. Defaults to false.
+     *
+     * @param saveBlockSums
+     * @return
+     */
+    public Options setSaveBlockSums(boolean saveBlockSums) {
+      this.saveBlockSums = saveBlockSums;
+      return this;
+    }
+
+    /**
+     * Whether to store the block sums of the output file next to it
+     *
+     * @return
+     */
+    public boolean isSaveBlockSums() {
+      return this.saveBlockSums;
+    }
+
+    /**
+     * Whether to leave blocks of the target that consist of zeros only as holes in the output file, recognizing them
+     * from their sums in the control file, instead of matching or downloading them. Saves reads, writes and network
+     * transfer for sparse files such as disk images. Defaults to false.
+     *
+     * @param sparseZeroBlocks
+     * @return
+     */
+    public Options setSparseZeroBlocks(boolean sparseZeroBlocks) {
+      this.sparseZeroBlocks = sparseZeroBlocks;
+      return this;
+    }
+
+    /**
+     * Whether to leave zero blocks of the target as holes in the output file
+     *
+     * @return
+     */
+    public boolean isSparseZeroBlocks() {
+      return this.sparseZeroBlocks;
+    }
+
+    /**
+     * Whether to allocate the disk space of the output file before any blocks are written to it, by writing zeros to it
+     * in order, which keeps large output files from fragmenting on file systems that allocate as blocks are written out
+     * of order. Zero blocks left as holes, see {@link #setSparseZeroBlocks(boolean)}, are not allocated. Since zeros are
+     * the only portable way to allocate, every block that is not complete yet is written twice, once with zeros and
+     * once with its content, which doubles the writes to the output file. Defaults to false.
+     *
+     * @param preallocateOutputFile
+     * @return
+     */
+    public Options setPreallocateOutputFile(boolean preallocateOutputFile) {
+      this.preallocateOutputFile = preallocateOutputFile;
+      return this;
+    }
+
+    /**
+     * Whether to allocate the disk space of the output file up front
+     *
+     * @return
+     */
+    public boolean isPreallocateOutputFile() {
+      return this.preallocateOutputFile;
+    }
+
+    /**
+     * Round trip time to the server of the remote file, e.g. as measured by previous syncs. Together with
+     * {@link #setRemoteBytesPerSecond(long)} determines which missing ranges are downloaded in one, including the
+     * blocks between them, because requesting them separately would cost more in part headers and round trips than
+     * downloading the blocks between them. Defaults to 0.
+     *
+     * @param remoteRoundTripMillis
+     * @return
+     */
+    public Options setRemoteRoundTripMillis(long remoteRoundTripMillis) {
+      if (remoteRoundTripMillis < 0) {
+        throw new IllegalArgumentException("round trip time must not be negative: " + remoteRoundTripMillis);
+      }
+      this.remoteRoundTripMillis = remoteRoundTripMillis;
+      return this;
+    }
+
+    /**
+     * Round trip time to the server of the remote file in milliseconds
+     *
+     * @return
+     */
+    public long getRemoteRoundTripMillis() {
+      return this.remoteRoundTripMillis;
+    }
+
+    /**
+     * Bandwidth of the connection to the server of the remote file, e.g. as measured from the {@link ZsyncStats} of
+     * previous syncs. If positive, missing ranges separated by few blocks are coalesced as described for
+     * {@link #setRemoteRoundTripMillis(long)}; completed blocks within coalesced ranges are downloaded but not written.
+     * Defaults to 0, i.e. ranges are not coalesced.
+     *
+     * @param remoteBytesPerSecond
+     * @return
+     */
+    public Options setRemoteBytesPerSecond(long remoteBytesPerSecond) {
+      if (remoteBytesPerSecond < 0) {
+        throw new IllegalArgumentException("bandwidth must not be negative: " + remoteBytesPerSecond);
+      }
+      this.remoteBytesPerSecond = remoteBytesPerSecond;
+      return this;
+    }
+
+    /**
+     * Bandwidth of the connection to the server of the remote file in bytes per second
+     *
+     * @return
+     */
+    public long getRemoteBytesPerSecond() {
+      return this.remoteBytesPerSecond;
+    }
+
   }
 
   public static final String VERSION = "0.6.2";
 
+  // number of recently synced targets whose block index is kept for reuse, as long as memory permits
+  private static final int CONTROL_FILE_CACHE_SIZE = 4;
+
   private final HttpClient httpClient;
+  private final Cache<String, ControlFile> controlFiles = CacheBuilder.newBuilder()
+      .maximumSize(CONTROL_FILE_CACHE_SIZE).softValues().<String, ControlFile>build();
 
   /**
    * Creates a new zsync client
@@ -323,7 +673,7 @@ public class Zsync {
   private Path zsyncInternal(URI zsyncFile, Options options, EventDispatcher events) throws ZsyncException {
     final ControlFile controlFile;
     try (InputStream in = this.openZsyncFile(zsyncFile, this.httpClient, options, events)) {
-      controlFile = ControlFile.read(in);
+      controlFile = this.reuseBlockSums(ControlFile.read(in));
     } catch (HttpError e) {
       if (e.getCode() == HTTP_NOT_FOUND) {
         throw new ZsyncControlFileNotFoundException("Zsync file " + zsyncFile + " does not exist.", e);
@@ -341,9 +691,16 @@ public class Zsync {
       outputFile = Paths.get(controlFile.getHeader().getFilename());
     }
 
-    // use the output file as a seed if it already exists
+    // use the output file as a seed if it already exists, first if its blocks can be matched without reading it
+    Map<Path, BlockSumsFile> blockSums = Collections.emptyMap();
     if (Files.exists(outputFile)) {
-      options.getInputFiles().add(outputFile);
+      final BlockSumsFile outputBlockSums = options.isSaveBlockSums() ? BlockSumsFile.read(outputFile) : null;
+      if (outputBlockSums == null) {
+        options.getInputFiles().add(outputFile);
+      } else {
+        options.getInputFiles().add(0, outputFile);
+        blockSums = Collections.singletonMap(outputFile, outputBlockSums);
+      }
     }
 
     // determine remote file location
@@ -358,9 +715,28 @@ public class Zsync {
 
     try (final OutputFileWriter outputFileWriter =
         new OutputFileWriter(outputFile, controlFile, events.getOutputFileWriteListener())) {
-      if (!this.processInputFiles(outputFileWriter, controlFile, options.getInputFiles(), events)) {
-        this.httpClient.partialGet(remoteFileUri, outputFileWriter.getMissingRanges(), options.getCredentials(),
-            events.getRangeReceiverListener(outputFileWriter), events.getRemoteFileDownloadListener());
+      if (options.isSparseZeroBlocks()) {
+        outputFileWriter.completeZeroBlocks();
+      }
+      if (options.isPreallocateOutputFile()) {
+        outputFileWriter.preallocate();
+      }
+      if (!outputFileWriter.isComplete()
+          && !this.processInputFiles(outputFileWriter, controlFile, options.getInputFiles(), options, blockSums,
+              events)) {
+        Iterator<ContentRange> ranges = outputFileWriter.missingRanges();
+        if (options.getRemoteBytesPerSecond() > 0) {
+          ranges = new RangeCoalescer(options.getRemoteRoundTripMillis(), options.getRemoteBytesPerSecond())
+              .coalesce(ranges);
+        }
+        final Integer requests = options.getConcurrentRangeRequests().get(remoteFileUri.getHost());
+        if (requests == null || requests == 1) {
+          this.httpClient.partialGet(remoteFileUri, ranges, options.getCredentials(),
+              events.getRangeReceiverListener(outputFileWriter), events.getRemoteFileDownloadListener());
+        } else {
+          this.downloadRangesConcurrently(remoteFileUri, outputFileWriter, ImmutableList.copyOf(ranges),
+              controlFile.getHeader().getBlocksize(), options, requests, events);
+        }
       }
     } catch (ChecksumValidationIOException exception) {
       throw new ZsyncChecksumValidationFailedException("Calculated checksum does not match expected checksum");
@@ -368,9 +744,148 @@ public class Zsync {
       throw new ZsyncException(e);
     }
 
+    if (options.isSaveBlockSums()) {
+      try {
+        BlockSumsFile.write(outputFile, controlFile);
+      } catch (IOException e) {
+        throw new ZsyncException("Failed to store block sums of output file", e);
+      }
+    }
+
     return outputFile;
   }
 
+  /**
+   * Downloads the given ranges with the given number of requests at a time, largest batches first. Observers see the
+   * concurrent requests as one download of all ranges, timed from before the first request until the last completes,
+   * while bytes and received ranges are reported as they arrive.
+   */
+  private void downloadRangesConcurrently(final URI remoteFileUri, final OutputFileWriter outputFileWriter,
+      List<ContentRange> ranges, int blockSize, final Options options, int requests, EventDispatcher events)
+      throws IOException, HttpError {
+    long length = 0;
+    for (ContentRange range : ranges) {
+      length += range.length();
+    }
+    final EventDispatcher requestEvents = events.joinRemoteFileEvents(outputFileWriter, length);
+    final ExecutorService executor = Executors.newFixedThreadPool(requests);
+    events.remoteFileDownloadingInitiated(remoteFileUri, ranges);
+    try {
+      final List<Future<Void>> results = new ArrayList<>();
+      for (final List<ContentRange> batch : partitionRanges(ranges, requests, blockSize)) {
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException, HttpError {
+            Zsync.this.httpClient.partialGet(remoteFileUri, batch, options.getCredentials(),
+                requestEvents.getRangeReceiverListener(outputFileWriter),
+                requestEvents.getRemoteFileDownloadListener());
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), IOException.class, HttpError.class);
+          throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while downloading ranges");
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      synchronized (outputFileWriter) {
+        events.remoteFileDownloadingComplete();
+      }
+    }
+  }
+
+  /**
+   * Splits the given ranges into batches for at least the given number of requests, each of at most the number of
+   * ranges the http client sends in one request. Ranges larger than a request's share of all bytes are split at block
+   * boundaries first, so that few large ranges still spread over all requests. Ranges are then assigned largest first
+   * to the batch with the fewest bytes so far, and batches are returned largest first, each with its ranges in order.
+   */
+  static List<List<ContentRange>> partitionRanges(List<ContentRange> ranges, int requests, int blockSize) {
+    long total = 0;
+    for (ContentRange range : ranges) {
+      total += range.length();
+    }
+    final long share = Math.max(1, total / requests / blockSize) * blockSize;
+    final List<ContentRange> pieces = new ArrayList<>(ranges.size());
+    for (ContentRange range : ranges) {
+      for (long first = range.first(); first <= range.last(); first += share) {
+        pieces.add(new ContentRange(first, Math.min(range.last(), first + share - 1)));
+      }
+    }
+    Collections.sort(pieces, new Comparator<ContentRange>() {
+      @Override
+      public int compare(ContentRange r1, ContentRange r2) {
+        return Long.compare(r2.length(), r1.length());
+      }
+    });
+
+    final int maxRanges = HttpClient.MAXIMUM_RANGES_PER_HTTP_REQUEST;
+    final int numBatches = Math.max(Math.min(requests, pieces.size()), (pieces.size() + maxRanges - 1) / maxRanges);
+    final long[] bytes = new long[numBatches];
+    final PriorityQueue<Integer> lightest = new PriorityQueue<>(Math.max(1, numBatches), new Comparator<Integer>() {
+      @Override
+      public int compare(Integer b1, Integer b2) {
+        return Long.compare(bytes[b1], bytes[b2]);
+      }
+    });
+    final List<List<ContentRange>> batches = new ArrayList<>(numBatches);
+    for (int b = 0; b < numBatches; b++) {
+      batches.add(new ArrayList<ContentRange>());
+      lightest.add(b);
+    }
+    for (ContentRange piece : pieces) {
+      final int b = lightest.remove();
+      batches.get(b).add(piece);
+      bytes[b] += piece.length();
+      // full batches take no more ranges
+      if (batches.get(b).size() < maxRanges) {
+        lightest.add(b);
+      }
+    }
+
+    final Integer[] order = new Integer[numBatches];
+    for (int b = 0; b < numBatches; b++) {
+      order[b] = b;
+      Collections.sort(batches.get(b), new Comparator<ContentRange>() {
+        @Override
+        public int compare(ContentRange r1, ContentRange r2) {
+          return Long.compare(r1.first(), r2.first());
+        }
+      });
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer b1, Integer b2) {
+        return Long.compare(bytes[b2], bytes[b1]);
+      }
+    });
+    final List<List<ContentRange>> partitions = new ArrayList<>(numBatches);
+    for (Integer b : order) {
+      partitions.add(batches.get(b));
+    }
+    return partitions;
+  }
+
+  /**
+   * Returns the given control file with the block sums of a control file previously read for the same target blocks,
+   * so that their block index is only built once across syncs of the same target.
+   */
+  private ControlFile reuseBlockSums(ControlFile controlFile) {
+    final Header h = controlFile.getHeader();
+    final String key = h.getSha1() + ':' + h.getLength() + ':' + h.getBlocksize() + ':' + h.isSeqMatches() + ':'
+        + h.getRsumBytes() + ':' + h.getChecksumBytes();
+    final ControlFile cached = this.controlFiles.asMap().putIfAbsent(key, controlFile);
+    return cached == null ? controlFile : controlFile.withBlockSumsOf(cached);
+  }
+
   /**
    * Opens the zsync file referred to by the given URI for read. If the file refers to a local file system path, the
    * local file is opened directly. Otherwise, if the file is remote and {@link Options#getSaveZsyncFile()} is
@@ -424,54 +939,268 @@ public class Zsync {
     return new ObservableInputStream(Files.newInputStream(zsyncFile), events.getControlFileReadListener());
   }
 
-  private boolean processInputFiles(OutputFileWriter targetFile, ControlFile controlFile,
-      Iterable<? extends Path> inputFiles, EventDispatcher events) throws IOException {
+  private boolean processInputFiles(final OutputFileWriter targetFile, final ControlFile controlFile,
+      List<? extends Path> inputFiles, Options options, Map<Path, BlockSumsFile> blockSums,
+      final EventDispatcher events) throws IOException {
+    if (options.getInputFileSamples() > 0) {
+      inputFiles = rankInputFiles(targetFile, controlFile, inputFiles, options);
+    }
+    final BlockMatcher matcher = BlockMatcher.create(controlFile);
+    final int scanParallelism = options.getScanParallelism();
+    final ForkJoinPool pool = scanParallelism == 1 ? null : new ForkJoinPool(scanParallelism);
+    try {
+      final int concurrency = Math.min(options.getConcurrentInputFiles(), inputFiles.size());
+      if (concurrency > 1) {
+        return this.processInputFilesConcurrently(targetFile, controlFile, matcher, inputFiles, options, blockSums,
+            pool, concurrency, events);
+      }
+      for (Path inputFile : inputFiles) {
+        if (this.processInputFile(targetFile, controlFile, matcher, inputFile, options.getInputSource(inputFile),
+            blockSums.get(inputFile), pool, options.isMatchAlignedBlocksFirst(), events)) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Orders input files by the number of sampled regions that hold a block of the target, dropping those in which none
+   * does. Input files read from a source keep their relative order after the sampled ones.
+   */
+  static List<Path> rankInputFiles(OutputFileWriter targetFile, ControlFile controlFile,
+      List<? extends Path> inputFiles, Options options) throws IOException {
+    final InputFileSampler sampler = new InputFileSampler(targetFile, controlFile);
+    final List<Path> ranked = new ArrayList<>(inputFiles.size());
+    final Map<Path, Integer> matches = new HashMap<>();
     for (Path inputFile : inputFiles) {
-      if (this.processInputFile(targetFile, controlFile, inputFile, events.getInputFileReadListener())) {
-        return true;
+      if (options.getInputSource(inputFile) != null) {
+        matches.put(inputFile, 0);
+        ranked.add(inputFile);
+        continue;
+      }
+      try (final FileChannel channel = FileChannel.open(inputFile)) {
+        final int m = sampler.sample(channel, options.getInputFileSamples());
+        if (m > 0) {
+          matches.put(inputFile, m);
+          ranked.add(inputFile);
+        }
+      }
+    }
+    // stable, so that input files with as many matches keep their order
+    Collections.sort(ranked, new Comparator<Path>() {
+      @Override
+      public int compare(Path o1, Path o2) {
+        return matches.get(o2).compareTo(matches.get(o1));
+      }
+    });
+    return ranked;
+  }
+
+  /**
+   * Scans up to the given number of input files at a time. Workers share the target file and stop as soon as it is
+   * complete. Input file events are buffered per input file and serialized on the target file, so that observers see
+   * the same sequence of events per input file as with sequential processing.
+   */
+  private boolean processInputFilesConcurrently(final OutputFileWriter targetFile, final ControlFile controlFile,
+      final BlockMatcher matcher, List<? extends Path> inputFiles, final Options options,
+      final Map<Path, BlockSumsFile> blockSums, final ForkJoinPool pool, int concurrency, final EventDispatcher events)
+      throws IOException {
+    final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    try {
+      final List<Future<Boolean>> results = new ArrayList<>(inputFiles.size());
+      for (final Path inputFile : inputFiles) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            return targetFile.isComplete() || Zsync.this.processInputFile(targetFile, controlFile, matcher,
+                inputFile, options.getInputSource(inputFile), blockSums.get(inputFile), pool,
+                options.isMatchAlignedBlocksFirst(), events.bufferInputFileEvents(targetFile));
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), IOException.class);
+          throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while processing input files");
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return targetFile.isComplete();
+  }
+
+  private boolean processInputFile(OutputFileWriter targetFile, ControlFile controlFile, BlockMatcher prototype,
+      Path inputFile, ByteSource source, BlockSumsFile blockSums, ForkJoinPool pool, boolean alignedFirst,
+      EventDispatcher events) throws IOException {
+    if (source != null) {
+      return this.processInputStream(targetFile, controlFile, prototype, inputFile, source, events);
+    }
+    final ResourceTransferListener<Path> listener = events.getInputFileReadListener();
+    try (final FileChannel fileChannel = FileChannel.open(inputFile)) {
+      final long size = fileChannel.size();
+      listener.start(inputFile, size);
+      try {
+        final CountingTransferListener counter = new CountingTransferListener(listener);
+        final int windowSize = prototype.getMatcherBlockSize();
+        final int zeros = numZeros(size, windowSize, controlFile.getHeader());
+        // the output file is replaced once complete, which fails on some platforms while it is still mapped
+        final boolean map = !isOutputFile(inputFile, targetFile.getPath());
+        final AlignedBlockScanner aligned =
+            blockSums != null || alignedFirst ? new AlignedBlockScanner(controlFile, map) : null;
+        // stored block sums match the aligned blocks without reading the input file, in place of the aligned pass
+        final boolean joined =
+            blockSums != null && aligned.join(targetFile, fileChannel, size, zeros, windowSize, blockSums);
+        final boolean alignedRead = alignedFirst && !joined;
+        if (alignedRead) {
+          // the aligned pass reads the input file, so the rolling scan does not report bytes again
+          aligned.scan(targetFile, fileChannel, size, zeros, windowSize, counter);
+        }
+        final TransferListener scanListener = alignedRead ? null : counter;
+        // scanning stops as soon as the target file is complete, which may be before it even starts
+        if (pool == null) {
+          final BlockMatcher matcher = prototype.copy();
+          if (!targetFile.isComplete()) {
+            final MappedRollingBuffer buffer =
+                new MappedRollingBuffer(fileChannel, 0, size, zeros, windowSize, map, scanListener);
+            int bytes;
+            do {
+              if (aligned != null) {
+                aligned.skipMatched(matcher, buffer);
+              }
+              matcher.skip(targetFile, buffer, Integer.MAX_VALUE);
+              bytes = matcher.match(targetFile, buffer);
+            } while (!targetFile.isComplete() && buffer.advance(bytes));
+          }
+          events.inputFilePrefilterStatistics(matcher.getPrefilterLookups(), matcher.getPrefilterHits(),
+              matcher.getPrefilterFalsePositives());
+          matchStatistics(events, aligned, matcher.getBytesScanned(), matcher.getStrongChecksums(),
+              matcher.getChecksumMisses(), matcher.getBlocksWritten(), matcher.getDuplicateBlocks());
+        } else {
+          final ParallelBlockScanner scanner = new ParallelBlockScanner(pool, prototype, map);
+          if (!targetFile.isComplete()) {
+            scanner.scan(targetFile, fileChannel, size, zeros, aligned, scanListener);
+          }
+          events.inputFilePrefilterStatistics(scanner.getPrefilterLookups(), scanner.getPrefilterHits(),
+              scanner.getPrefilterFalsePositives());
+          matchStatistics(events, aligned, scanner.getBytesScanned(), scanner.getStrongChecksums(),
+              scanner.getChecksumMisses(), scanner.getBlocksWritten(), scanner.getDuplicateBlocks());
+        }
+        if (alignedRead && !targetFile.isComplete()) {
+          // input beyond the target's blocks is only read by the rolling scan
+          counter.transferred(size - counter.getBytes());
+        }
+        if (counter.getBytes() < size) {
+          events.inputFileBytesSkipped(size - counter.getBytes());
+        }
+      } finally {
+        listener.close();
       }
     }
-    return false;
+    return targetFile.isComplete();
   }
 
-  private boolean processInputFile(OutputFileWriter targetFile, ControlFile controlFile, Path inputFile,
-      ResourceTransferListener<Path> listener) throws IOException {
-    final long size;
-    try (final FileChannel fileChannel = FileChannel.open(inputFile);
-        final ReadableByteChannel channel =
-            new ObservableReadableResourceChannel<>(fileChannel, listener, inputFile, size = fileChannel.size())) {
-      final BlockMatcher matcher = BlockMatcher.create(controlFile);
-      final int matcherBlockSize = matcher.getMatcherBlockSize();
-      final ReadableByteChannel c = zeroPad(channel, size, matcherBlockSize, controlFile.getHeader());
-      final RollingBuffer buffer = new RollingBuffer(c, matcherBlockSize, 16 * matcherBlockSize);
-      int bytes;
-      do {
-        bytes = matcher.match(targetFile, buffer);
-      } while (buffer.advance(bytes));
+  /**
+   * Scans an input file streamed from the given source in a single pass. Since its length is not known in advance, it
+   * is padded with zeros once the end of the stream is reached.
+   */
+  private boolean processInputStream(OutputFileWriter targetFile, ControlFile controlFile, BlockMatcher prototype,
+      Path inputFile, ByteSource source, EventDispatcher events) throws IOException {
+    final BlockMatcher matcher = prototype.copy();
+    final int windowSize = matcher.getMatcherBlockSize();
+    try (final ReadableByteChannel channel = new ObservableReadableResourceChannel<>(Channels.newChannel(source
+        .openStream()), events.getInputFileReadListener(), inputFile, -1)) {
+      if (!targetFile.isComplete()) {
+        final RollingBuffer buffer = new RollingBuffer(ZeroPaddedReadableByteChannel.padToBlockSize(channel,
+            controlFile.getHeader().getBlocksize(), windowSize), windowSize, 16 * windowSize);
+        int bytes;
+        do {
+          matcher.skip(targetFile, buffer, Integer.MAX_VALUE);
+          bytes = matcher.match(targetFile, buffer);
+        } while (!targetFile.isComplete() && buffer.advance(bytes));
+      }
+      events.inputFilePrefilterStatistics(matcher.getPrefilterLookups(), matcher.getPrefilterHits(),
+          matcher.getPrefilterFalsePositives());
+      matchStatistics(events, null, matcher.getBytesScanned(), matcher.getStrongChecksums(),
+          matcher.getChecksumMisses(), matcher.getBlocksWritten(), matcher.getDuplicateBlocks());
     }
     return targetFile.isComplete();
   }
 
   /**
-   * Pads the given channel with zeros if the length of the input file is not evenly divisible by the block size. The is
-   * necessary to match how the checksums in the zsync file are computed.
+   * Reports the work done by the rolling scan of an input file together with that of its aligned pass, if any
+   */
+  private static void matchStatistics(EventDispatcher events, AlignedBlockScanner aligned, long bytesScanned,
+      long strongChecksums, long checksumMisses, long blocksWritten, long duplicateBlocks) {
+    if (aligned != null) {
+      strongChecksums += aligned.getStrongChecksums();
+      blocksWritten += aligned.getBlocksWritten();
+      duplicateBlocks += aligned.getDuplicateBlocks();
+    }
+    events.inputFileMatchStatistics(bytesScanned, strongChecksums, checksumMisses, blocksWritten, duplicateBlocks);
+  }
+
+  /**
+   * Number of zeros to pad the input file with if its length is not evenly divisible by the block size or it is smaller
+   * than the matcher block size. The is necessary to match how the checksums in the zsync file are computed.
    *
-   * @param channel channel for input file to pad
+   * @param size size of the input file
+   * @param matcherBlockSize
    * @param header header of the zsync file being processed.
    * @return
-   * @throws IOException
    */
-  static ReadableByteChannel zeroPad(ReadableByteChannel channel, long size, int matcherBlockSize, Header header)
-      throws IOException {
-    final int numZeros;
+  static int numZeros(long size, int matcherBlockSize, Header header) {
     if (size < matcherBlockSize) {
-      numZeros = matcherBlockSize - (int) size;
-    } else {
-      final int blockSize = header.getBlocksize();
-      final int lastBlockSize = (int) (size % blockSize);
-      numZeros = lastBlockSize == 0 ? 0 : blockSize - lastBlockSize;
+      return matcherBlockSize - (int) size;
+    }
+    final int blockSize = header.getBlocksize();
+    final int lastBlockSize = (int) (size % blockSize);
+    return lastBlockSize == 0 ? 0 : blockSize - lastBlockSize;
+  }
+
+  /**
+   * Whether the given input file is the output file, which does not need to exist yet
+   */
+  private static boolean isOutputFile(Path inputFile, Path outputFile) throws IOException {
+    return Files.exists(outputFile) && Files.isSameFile(inputFile, outputFile);
+  }
+
+  /**
+   * Forwards bytes transferred to the given listener and counts them
+   */
+  private static final class CountingTransferListener implements TransferListener {
+
+    private final TransferListener listener;
+    private long bytes;
+
+    CountingTransferListener(TransferListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void transferred(long bytes) {
+      this.bytes += bytes;
+      this.listener.transferred(bytes);
+    }
+
+    long getBytes() {
+      return this.bytes;
+    }
+
+    @Override
+    public void close() {
+      // the listener is closed by the caller
     }
-    return numZeros == 0 ? channel : new ZeroPaddedReadableByteChannel(channel, numZeros);
   }
 
   // this is just a temporary hacked up CLI for testing purposes
@@ -515,6 +1244,8 @@ public class Zsync {
     System.out.println("Total bytes downloaded: " + stats.getTotalBytesDownloaded() + " (control file: "
         + stats.getBytesDownloadedForControlFile() + ", remote file: " + stats.getBytesDownloadedFromRemoteFile()
         + ")");
+    System.out.println("Prefilter false positive rate by input file: "
+        + stats.getPrefilterFalsePositiveRateByInputFile());
     System.out.println("Total time: " + stats.getTotalElapsedMilliseconds() + " ms. Of which downloading "
         + stats.getElapsedMillisecondsDownloading() + " ms");
   }
@@ -112,6 +112,29 @@ public class ZsyncForwardingObserver extends ZsyncObserver {
     }
   }
 
+  @Override
+  public void inputFilePrefilterStatistics(long lookups, long hits, long falsePositives) {
+    for (ZsyncObserver observer : this.observers) {
+      observer.inputFilePrefilterStatistics(lookups, hits, falsePositives);
+    }
+  }
+
+  @Override
+  public void inputFileMatchStatistics(long bytesScanned, long strongChecksums, long checksumMisses,
+      long blocksWritten, long duplicateBlocks) {
+    for (ZsyncObserver observer : this.observers) {
+      observer.inputFileMatchStatistics(bytesScanned, strongChecksums, checksumMisses, blocksWritten,
+          duplicateBlocks);
+    }
+  }
+
+  @Override
+  public void inputFileBytesSkipped(long bytes) {
+    for (ZsyncObserver observer : this.observers) {
+      observer.inputFileBytesSkipped(bytes);
+    }
+  }
+
   @Override
   public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
     for (ZsyncObserver observer : this.observers) {
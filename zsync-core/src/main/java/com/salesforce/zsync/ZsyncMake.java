@@ -45,6 +45,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.TimeZone;
 
+import com.salesforce.zsync.internal.util.MD4Digest;
 import com.salesforce.zsync.internal.util.ZsyncUtil;
 
 /**
@@ -197,7 +198,7 @@ public class ZsyncMake {
     }
 
     final MessageDigest fileDigest = ZsyncUtil.newSHA1();
-    final MessageDigest blockDigest = ZsyncUtil.newMD4();
+    final MD4Digest blockDigest = new MD4Digest();
 
     // We don't want to modify the Options object that was passed in, so we create a copy. We then
     // populate any missing
@@ -275,7 +276,7 @@ public class ZsyncMake {
    * @throws IOException
    */
   private ByteBuffer computeChecksums(final Path inputFile, final int blockSize, final long fileLength,
-      final int weakLen, final int strongLen, MessageDigest fileDigest, MessageDigest blockDigest) {
+      final int weakLen, final int strongLen, MessageDigest fileDigest, MD4Digest blockDigest) {
     if (weakLen < 1 || weakLen > 4) {
       throw new IllegalArgumentException("weak checksum length must be in interval [1, 4]");
     }
@@ -313,9 +314,9 @@ public class ZsyncMake {
           checksums.put(weakBytes);
 
           // write leading bytes of strong checksum
-          final ByteBuffer strongBytes = ByteBuffer.wrap(blockDigest.digest(block));
-          strongBytes.limit(strongLen);
-          checksums.put(strongBytes);
+          final int position = checksums.position();
+          blockDigest.digest(block, 0, blockSize, checksums.array(), checksums.arrayOffset() + position, strongLen);
+          checksums.position(position + strongLen);
         }
       }
     } catch (IOException exception) {
@@ -55,10 +55,49 @@ public class ZsyncObserver {
 
   public void outputFileWritingCompleted() {}
 
+  /**
+   * Reports that reading the given input file started. The length is -1 for input files streamed from a source of
+   * unknown length.
+   */
   public void inputFileReadingStarted(Path inputFile, long length) {}
 
   public void inputFileReadingComplete() {}
 
+  /**
+   * Reports how well the weak checksum prefilter performed while matching the current input file: the number of
+   * weak checksums tested, the number of tests that passed the prefilter, and how many of those were rejected by the
+   * exact weak checksum lookup. The prefilter's false positive rate is
+   * <code>falsePositives / (lookups - hits + falsePositives)</code>.
+   *
+   * @param lookups
+   * @param hits
+   * @param falsePositives
+   */
+  public void inputFilePrefilterStatistics(long lookups, long hits, long falsePositives) {}
+
+  /**
+   * Reports the work done matching the current input file: the number of bytes the rolling scan passed over, the number
+   * of strong checksums computed, the number of rolling checksum matches whose strong checksum matched no block of the
+   * target, and the number of blocks written to the output file as well as the number of matching blocks not written
+   * since the output file already held them. Counts include the aligned pass, if any.
+   *
+   * @param bytesScanned
+   * @param strongChecksums
+   * @param checksumMisses
+   * @param blocksWritten
+   * @param duplicateBlocks
+   */
+  public void inputFileMatchStatistics(long bytesScanned, long strongChecksums, long checksumMisses,
+      long blocksWritten, long duplicateBlocks) {}
+
+  /**
+   * Reports the number of bytes of the current input file that were not read because the output file was complete
+   * before the end of the input file was reached.
+   *
+   * @param bytes
+   */
+  public void inputFileBytesSkipped(long bytes) {}
+
   public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {}
 
   public void remoteFileDownloadingStarted(URI uri, long length) {}
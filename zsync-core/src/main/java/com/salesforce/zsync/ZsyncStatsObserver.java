@@ -41,6 +41,31 @@ import com.salesforce.zsync.http.ContentRange;
 
 public class ZsyncStatsObserver extends ZsyncObserver {
 
+  /**
+   * Work done matching an input file, see
+   * {@link ZsyncObserver#inputFileMatchStatistics(long, long, long, long, long)}
+   */
+  public static interface MatchStats {
+
+    long getBytesScanned();
+
+    /**
+     * Number of offsets whose rolling checksum occurs in the control file
+     *
+     * @return
+     */
+    long getRsumHits();
+
+    long getStrongChecksums();
+
+    long getChecksumMisses();
+
+    long getBlocksWritten();
+
+    long getDuplicateBlocks();
+
+  }
+
   public static interface ZsyncStats {
 
     long getTotalBytesRead();
@@ -57,6 +82,25 @@ public class ZsyncStatsObserver extends ZsyncObserver {
 
     Map<Path, Long> getTotalBytesReadByInputFile();
 
+    /**
+     * Number of bytes of input files not read because the output file was already complete
+     *
+     * @return
+     */
+    long getTotalBytesSkipped();
+
+    Map<Path, Long> getTotalBytesSkippedByInputFile();
+
+    /**
+     * Fraction of weak checksums not present in the control file that nevertheless passed the bit hash prefilter, by
+     * input file
+     *
+     * @return
+     */
+    Map<Path, Double> getPrefilterFalsePositiveRateByInputFile();
+
+    Map<Path, MatchStats> getMatchStatsByInputFile();
+
     long getTotalElapsedMilliseconds();
 
     long getElapsedMillisecondsDownloading();
@@ -84,6 +128,9 @@ public class ZsyncStatsObserver extends ZsyncObserver {
 
   private final Builder<Path, Long> bytesWrittenByInputFile = ImmutableMap.builder();
   private final Builder<Path, Long> bytesReadByInputFile = ImmutableMap.builder();
+  private final Builder<Path, Long> bytesSkippedByInputFile = ImmutableMap.builder();
+  private final Builder<Path, Double> prefilterFalsePositiveRateByInputFile = ImmutableMap.builder();
+  private final Builder<Path, MatchStats> matchStatsByInputFile = ImmutableMap.builder();
 
   private long bytesRead = 0;
   private long bytesWritten = 0;
@@ -92,6 +139,7 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   private long totalBytesRead = 0;
   private long totalBytesWritten = 0;
   private long totalBytesDownloaded = 0;
+  private long totalBytesSkipped = 0;
 
   private long bytesDownloadedForControlFile = 0;
   private long bytesDownloadedFromRemoteTarget = 0;
@@ -99,6 +147,7 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   private Path inputFile;
   private long bytesReadBefore;
   private long bytesWrittenBefore;
+  private long rsumHits;
 
   @Override
   public void zsyncStarted(URI requestedZsyncUri, Options options) {
@@ -155,6 +204,58 @@ public class ZsyncStatsObserver extends ZsyncObserver {
     this.bytesRead = 0;
   }
 
+  @Override
+  public void inputFilePrefilterStatistics(long lookups, long hits, long falsePositives) {
+    final long negatives = lookups - hits + falsePositives;
+    this.prefilterFalsePositiveRateByInputFile.put(this.inputFile,
+        negatives == 0 ? 0d : (double) falsePositives / negatives);
+    this.rsumHits = hits - falsePositives;
+  }
+
+  @Override
+  public void inputFileMatchStatistics(final long bytesScanned, final long strongChecksums,
+      final long checksumMisses, final long blocksWritten, final long duplicateBlocks) {
+    final long rsumHits = this.rsumHits;
+    this.matchStatsByInputFile.put(this.inputFile, new MatchStats() {
+      @Override
+      public long getBytesScanned() {
+        return bytesScanned;
+      }
+
+      @Override
+      public long getRsumHits() {
+        return rsumHits;
+      }
+
+      @Override
+      public long getStrongChecksums() {
+        return strongChecksums;
+      }
+
+      @Override
+      public long getChecksumMisses() {
+        return checksumMisses;
+      }
+
+      @Override
+      public long getBlocksWritten() {
+        return blocksWritten;
+      }
+
+      @Override
+      public long getDuplicateBlocks() {
+        return duplicateBlocks;
+      }
+    });
+    this.rsumHits = 0;
+  }
+
+  @Override
+  public void inputFileBytesSkipped(long bytes) {
+    this.totalBytesSkipped += bytes;
+    this.bytesSkippedByInputFile.put(this.inputFile, bytes);
+  }
+
   @Override
   public void outputFileWritingStarted(Path outputFile, long length) {
     this.bytesWritten = 0;
@@ -213,6 +314,9 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   public ZsyncStats build() {
     final Map<Path, Long> bytesWrittenByInputFile = this.bytesWrittenByInputFile.build();
     final Map<Path, Long> bytesReadByInputFile = this.bytesReadByInputFile.build();
+    final Map<Path, Long> bytesSkippedByInputFile = this.bytesSkippedByInputFile.build();
+    final Map<Path, Double> prefilterFalsePositiveRateByInputFile = this.prefilterFalsePositiveRateByInputFile.build();
+    final Map<Path, MatchStats> matchStatsByInputFile = this.matchStatsByInputFile.build();
     final long totalElapsedMilliseconds = this.stopwatch.elapsed(TimeUnit.MILLISECONDS);
     final long elapsedMillisecondsDownloading = this.elapsedMillisDownloading;
     final long elapsedMillisecondsDownloadingControlFile = this.elapsedMillisDownloadingControlFile;
@@ -223,6 +327,7 @@ public class ZsyncStatsObserver extends ZsyncObserver {
     final long bytesDownloadedFromRemoteTarget = this.bytesDownloadedFromRemoteTarget;
     final long totalBytesRead = this.totalBytesRead;
     final long totalBytesWritten = this.totalBytesWritten;
+    final long totalBytesSkipped = this.totalBytesSkipped;
 
     return new ZsyncStats() {
       @Override
@@ -260,6 +365,26 @@ public class ZsyncStatsObserver extends ZsyncObserver {
         return bytesReadByInputFile;
       }
 
+      @Override
+      public long getTotalBytesSkipped() {
+        return totalBytesSkipped;
+      }
+
+      @Override
+      public Map<Path, Long> getTotalBytesSkippedByInputFile() {
+        return bytesSkippedByInputFile;
+      }
+
+      @Override
+      public Map<Path, Double> getPrefilterFalsePositiveRateByInputFile() {
+        return prefilterFalsePositiveRateByInputFile;
+      }
+
+      @Override
+      public Map<Path, MatchStats> getMatchStatsByInputFile() {
+        return matchStatsByInputFile;
+      }
+
       @Override
       public long getTotalElapsedMilliseconds() {
         return totalElapsedMilliseconds;
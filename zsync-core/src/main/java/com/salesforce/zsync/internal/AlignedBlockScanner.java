@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import com.salesforce.zsync.internal.util.MD4Digest;
+import com.salesforce.zsync.internal.util.MappedRollingBuffer;
+import com.salesforce.zsync.internal.util.RollingReadableByteBuffer;
+import com.salesforce.zsync.internal.util.TransferListener;
+
+/**
+ * Matches each block-aligned offset of an input file against the target block at the same position, which finds the
+ * unchanged blocks of a previous version of the target without a rolling scan. The rolling scan then skips the
+ * remainder of each run of blocks matched in place as soon as it reaches one of the run's aligned offsets: from there,
+ * the rolling scan would match block after block until the end of the run anyway, so it finds the same blocks.
+ * <p>
+ * If the block sums of the input file are known, e.g. since it is the output of a previous sync, its aligned blocks are
+ * instead joined with the target's block index without reading the input file, see
+ * {@link #join(OutputFileWriter, FileChannel, long, int, int, BlockSumsFile)}.
+ */
+public class AlignedBlockScanner {
+
+  private final ControlFile controlFile;
+  private final int blockSize;
+  private final boolean seqMatches;
+  private final List<? extends BlockSum> blockSums;
+  private final MutableBlockSum blockSum;
+  private final boolean map;
+
+  // window offsets [runFirsts[i], runLasts[i]] lie within the i-th run of matched blocks, in ascending order
+  private long[] runFirsts = new long[0];
+  private long[] runLasts = new long[0];
+  private int numRuns;
+
+  // strong checksums computed and blocks written to the target or rejected as complete already
+  private long strongChecksums;
+  private long blocksWritten;
+  private long duplicateBlocks;
+
+  public AlignedBlockScanner(ControlFile controlFile) {
+    this(controlFile, true);
+  }
+
+  /**
+   * @param controlFile
+   * @param map whether to map the input file into memory or to read it through its channel, see
+   *        {@link MappedRollingBuffer}
+   */
+  public AlignedBlockScanner(ControlFile controlFile, boolean map) {
+    final Header header = controlFile.getHeader();
+    this.controlFile = controlFile;
+    this.blockSize = header.getBlocksize();
+    this.seqMatches = header.isSeqMatches();
+    this.blockSums = controlFile.getBlockSums();
+    this.blockSum =
+        new MutableBlockSum(new MD4Digest(), this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
+    this.map = map;
+  }
+
+  /**
+   * Writes the blocks of the input file that match the target at the same position to the target file, as well as to
+   * all other target blocks with the same content. If the control file requires sequential matches, a block is only
+   * accepted if a neighboring block matches as well.
+   *
+   * @param targetFile
+   * @param channel the input file
+   * @param size size of the input file
+   * @param zeros number of zeros to append to the input file
+   * @param windowSize window size of the matcher performing the rolling scan
+   * @param listener notified of bytes of the input file as they are read
+   * @throws IOException
+   */
+  public void scan(OutputFileWriter targetFile, FileChannel channel, long size, int zeros, int windowSize,
+      TransferListener listener) throws IOException {
+    final BlockIndex index = targetFile.getIndex();
+    final int numBlocks = (int) Math.min(index.getNumBlocks(), (size + zeros) / this.blockSize);
+
+    final boolean[] matched = new boolean[numBlocks];
+    if (numBlocks > 0) {
+      final MappedRollingBuffer buffer =
+          new MappedRollingBuffer(channel, 0, size, zeros, this.blockSize, this.map, listener);
+      for (int i = 0; i < numBlocks; i++) {
+        if (i > 0) {
+          buffer.advance(this.blockSize);
+        }
+        // compare the cheap rolling checksum before computing the strong one
+        this.blockSum.rsum.init(buffer);
+        if (this.blockSum.getRsum() == index.getRsum(i)) {
+          this.blockSum.checksum.setChecksum(buffer);
+          this.strongChecksums++;
+          matched[i] = index.matches(i, this.blockSum);
+        }
+      }
+    }
+    // each matched block equals target block i, so the latter's checksums locate all target blocks with the same
+    // content
+    this.write(targetFile, channel, size, zeros, windowSize, this.blockSums, matched, true);
+  }
+
+  /**
+   * Writes the blocks of the input file whose stored block sums occur in the target to all target blocks with the same
+   * content, without reading the input file except for the blocks written. Unlike {@link #scan}, blocks are matched at
+   * any position of the target, not only at their own. Does nothing if the stored block sums are incompatible with the
+   * target's, i.e. for a different block size or shorter than its block sums.
+   *
+   * @param targetFile
+   * @param channel the input file
+   * @param size size of the input file
+   * @param zeros number of zeros to append to the input file
+   * @param windowSize window size of the matcher performing the rolling scan
+   * @param blockSumsFile block sums stored for the input file
+   * @return whether the block sums were joined
+   * @throws IOException
+   */
+  public boolean join(OutputFileWriter targetFile, FileChannel channel, long size, int zeros, int windowSize,
+      BlockSumsFile blockSumsFile) throws IOException {
+    final List<? extends BlockSum> inputBlockSums = blockSumsFile.getBlockSums(this.controlFile);
+    if (inputBlockSums == null) {
+      return false;
+    }
+    final BlockIndex index = targetFile.getIndex();
+    final int numBlocks = (int) Math.min(inputBlockSums.size(), (size + zeros) / this.blockSize);
+    final boolean[] matched = new boolean[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      matched[i] = index.find(inputBlockSums.get(i)) != -1;
+    }
+    this.write(targetFile, channel, size, zeros, windowSize, inputBlockSums, matched, false);
+    return true;
+  }
+
+  /**
+   * Writes the accepted matched blocks to all target blocks with their block sums and records runs of them for the
+   * rolling scan to skip. With sequential matches, a block is only written to a target position whose neighbor matches
+   * the block's neighbor as well, unless the block was matched in place, i.e. against the target block at its own
+   * position, and its neighbor was too.
+   */
+  private void write(OutputFileWriter targetFile, FileChannel channel, long size, int zeros, int windowSize,
+      List<? extends BlockSum> sums, boolean[] matched, boolean inPlace) throws IOException {
+    final BlockIndex index = targetFile.getIndex();
+    final int numBlocks = matched.length;
+    MappedRollingBuffer source = null;
+    for (int i = 0; i < numBlocks;) {
+      if (!this.accept(matched, i)) {
+        i++;
+        continue;
+      }
+      final int first = i;
+      for (; i < numBlocks && this.accept(matched, i); i++) {
+        final long offset = (long) i * this.blockSize;
+        if (source == null || offset - source.position() > source.getMapSize()) {
+          source = new MappedRollingBuffer(channel, offset, size, zeros, this.blockSize, this.map, null);
+        }
+        BlockMatcher.advance(source, offset - source.position());
+        for (int slot = index.find(sums.get(i)); slot != -1; slot = index.next(slot)) {
+          final int position = index.getPosition(slot);
+          if (!this.seqMatches || (inPlace && position == i)
+              || this.isNeighborMatch(index, sums, matched, i, position)) {
+            if (targetFile.writeBlock(position, source)) {
+              this.blocksWritten++;
+            } else {
+              this.duplicateBlocks++;
+            }
+          }
+        }
+      }
+      final long runFirst = (long) first * this.blockSize;
+      final long runLast = (long) i * this.blockSize - windowSize;
+      if (runLast >= runFirst) {
+        if (this.numRuns == this.runFirsts.length) {
+          this.runFirsts = Arrays.copyOf(this.runFirsts, Math.max(16, 2 * this.numRuns));
+          this.runLasts = Arrays.copyOf(this.runLasts, this.runFirsts.length);
+        }
+        this.runFirsts[this.numRuns] = runFirst;
+        this.runLasts[this.numRuns++] = runLast;
+      }
+    }
+  }
+
+  /**
+   * Advances the buffer to the last window within the run of matched blocks if it is at an aligned offset within the
+   * run, and resets the matcher to continue from there.
+   *
+   * @return number of bytes skipped
+   * @throws IOException
+   */
+  public long skipMatched(BlockMatcher matcher, RollingReadableByteBuffer buffer) throws IOException {
+    final long position = buffer.position();
+    final long skipped = this.skipMatched(position) - position;
+    if (skipped > 0) {
+      BlockMatcher.advance(buffer, skipped);
+      matcher.reset();
+    }
+    return skipped;
+  }
+
+  /**
+   * Returns the offset at which the rolling scan continues after reaching the given offset: the last window offset
+   * within the run of matched blocks if the given offset is an aligned offset within the run, and the given offset
+   * otherwise.
+   */
+  long skipMatched(long offset) {
+    if (offset % this.blockSize != 0) {
+      return offset;
+    }
+    int i = Arrays.binarySearch(this.runFirsts, 0, this.numRuns, offset);
+    i = i < 0 ? -i - 2 : i;
+    return i >= 0 && offset <= this.runLasts[i] ? this.runLasts[i] : offset;
+  }
+
+  public long getStrongChecksums() {
+    return this.strongChecksums;
+  }
+
+  public long getBlocksWritten() {
+    return this.blocksWritten;
+  }
+
+  public long getDuplicateBlocks() {
+    return this.duplicateBlocks;
+  }
+
+  private boolean accept(boolean[] matched, int i) {
+    return matched[i] && (!this.seqMatches || (i > 0 && matched[i - 1]) || (i + 1 < matched.length && matched[i + 1]));
+  }
+
+  /**
+   * Whether the target block at the given position has a neighbor that equals the corresponding neighbor of input block
+   * i, which is what the rolling scan requires of sequential matches.
+   */
+  private boolean isNeighborMatch(BlockIndex index, List<? extends BlockSum> sums, boolean[] matched, int i,
+      int position) {
+    return (i + 1 < matched.length && matched[i + 1] && position + 1 < index.getNumBlocks() && index.matches(
+        position + 1, sums.get(i + 1)))
+        || (i > 0 && matched[i - 1] && position > 0 && index.matches(position - 1, sums.get(i - 1)));
+  }
+
+}
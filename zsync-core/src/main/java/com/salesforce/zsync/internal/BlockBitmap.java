@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size set of block positions backed by atomically updated words, so that concurrent writers can claim each
+ * block exactly once. Runs of set and clear bits are found a word at a time, so scans of large, mostly complete or
+ * mostly missing files touch one word per 64 blocks.
+ */
+final class BlockBitmap {
+
+  private final int size;
+  private final AtomicLongArray words;
+
+  BlockBitmap(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("size must not be negative: " + size);
+    }
+    this.size = size;
+    this.words = new AtomicLongArray((size + 63) >>> 6);
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  boolean get(int position) {
+    return (this.words.get(position >>> 6) & (1L << position)) != 0;
+  }
+
+  /**
+   * Sets the bit at the given position
+   *
+   * @return whether this call set it, false if it was set already
+   */
+  boolean set(int position) {
+    final int i = position >>> 6;
+    final long mask = 1L << position;
+    long word;
+    do {
+      word = this.words.get(i);
+      if ((word & mask) != 0) {
+        return false;
+      }
+    } while (!this.words.compareAndSet(i, word, word | mask));
+    return true;
+  }
+
+  /**
+   * Returns the first position at or after the given one whose bit is set, or the size if there is none
+   */
+  int nextSetBit(int from) {
+    return this.next(from, false);
+  }
+
+  /**
+   * Returns the first position at or after the given one whose bit is clear, or the size if there is none
+   */
+  int nextClearBit(int from) {
+    return this.next(from, true);
+  }
+
+  private int next(int from, boolean clear) {
+    if (from >= this.size) {
+      return this.size;
+    }
+    int i = from >>> 6;
+    // bits before the given position are masked out of the first word, after inverting it when looking for clear bits
+    long word = (clear ? ~this.words.get(i) : this.words.get(i)) & (-1L << from);
+    while (word == 0) {
+      if (++i == this.words.length()) {
+        return this.size;
+      }
+      word = clear ? ~this.words.get(i) : this.words.get(i);
+    }
+    return Math.min(this.size, (i << 6) + Long.numberOfTrailingZeros(word));
+  }
+
+}
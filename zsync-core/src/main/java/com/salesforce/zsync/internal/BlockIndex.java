@@ -0,0 +1,322 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import java.util.List;
+
+
+/**
+ * Flat, primitive index from block sums to the positions of target blocks carrying them. Positions are bucketed by a
+ * hash of their rsum into one contiguous array (in compressed sparse row layout), and the strong checksums are packed
+ * into a single byte array in the same bucket order, so that a lookup touches the bucket offsets, then scans a short
+ * contiguous run of rsums and checksums in place. Building the index is linear in the number of blocks; within a
+ * bucket positions are kept in ascending order.
+ * <p>
+ * Blocks that no longer need to be matched can be retired by building a new index via {@link #retain(boolean[])}.
+ * Retired blocks are moved behind the live blocks of their bucket, where lookups no longer visit them, while the
+ * per-position accessors still cover all blocks. An index never changes once built, so it may be shared by
+ * concurrent scans.
+ */
+class BlockIndex {
+
+  private final int numBlocks;
+  private final int numLiveBlocks;
+  private final int checksumLength;
+
+  // rsum of each block, by position
+  private final int[] rsums;
+  // slot of each block, by position
+  private final int[] slots;
+
+  // bucket b occupies slots [bucketStarts[b], bucketStarts[b + 1]), of which [bucketStarts[b], liveEnds[b]) are live
+  private final int[] bucketStarts;
+  private final int[] liveEnds;
+  private final int bucketMask;
+  // position, rsum and checksum of the block stored in each slot
+  private final int[] positions;
+  private final int[] slotRsums;
+  private final byte[] checksums;
+
+  BlockIndex(List<? extends BlockSum> blockSums, int checksumLength) {
+    this(rsums(blockSums), null, checksumLength);
+    int p = 0;
+    for (BlockSum blockSum : blockSums) {
+      System.arraycopy(blockSum.getChecksum(), 0, this.checksums, this.slots[p++] * checksumLength, checksumLength);
+    }
+  }
+
+  /**
+   * Lays out the given blocks, placing live blocks before retired ones within each bucket, but does not fill in
+   * checksums.
+   *
+   * @param rsums rsum of each block, by position
+   * @param live whether each block is live, by position, or null if all are
+   */
+  private BlockIndex(int[] rsums, boolean[] live, int checksumLength) {
+    this.numBlocks = rsums.length;
+    this.checksumLength = checksumLength;
+    this.rsums = rsums;
+    this.slots = new int[this.numBlocks];
+
+    final int numBuckets = numBuckets(this.numBlocks);
+    this.bucketMask = numBuckets - 1;
+    this.bucketStarts = new int[numBuckets + 1];
+    this.liveEnds = new int[numBuckets];
+    this.positions = new int[this.numBlocks];
+    this.slotRsums = new int[this.numBlocks];
+    this.checksums = new byte[this.numBlocks * checksumLength];
+
+    // count bucket sizes, shifted by one so that the prefix sum yields bucket start offsets
+    int numLive = 0;
+    for (int p = 0; p < this.numBlocks; p++) {
+      final int b = this.bucket(rsums[p]);
+      this.bucketStarts[b + 1]++;
+      if (live == null || live[p]) {
+        this.liveEnds[b]++;
+        numLive++;
+      }
+    }
+    this.numLiveBlocks = numLive;
+    for (int b = 0; b < numBuckets; b++) {
+      this.bucketStarts[b + 1] += this.bucketStarts[b];
+      this.liveEnds[b] += this.bucketStarts[b];
+    }
+
+    // place blocks in position order, which keeps live and retired positions within each bucket ascending
+    final int[] nextLive = new int[numBuckets];
+    final int[] nextRetired = new int[numBuckets];
+    System.arraycopy(this.bucketStarts, 0, nextLive, 0, numBuckets);
+    System.arraycopy(this.liveEnds, 0, nextRetired, 0, numBuckets);
+    for (int p = 0; p < this.numBlocks; p++) {
+      final int rsum = rsums[p];
+      final int b = this.bucket(rsum);
+      final int slot = live == null || live[p] ? nextLive[b]++ : nextRetired[b]++;
+      this.slots[p] = slot;
+      this.positions[slot] = p;
+      this.slotRsums[slot] = rsum;
+    }
+  }
+
+  private static int[] rsums(List<? extends BlockSum> blockSums) {
+    final int[] rsums = new int[blockSums.size()];
+    int p = 0;
+    for (BlockSum blockSum : blockSums) {
+      rsums[p++] = blockSum.getRsum();
+    }
+    return rsums;
+  }
+
+  /**
+   * Returns an index of the same blocks in which only the given blocks are live, i.e. found by lookups.
+   *
+   * @param live whether each block remains live, by position
+   * @return
+   */
+  BlockIndex retain(boolean[] live) {
+    if (live.length != this.numBlocks) {
+      throw new IllegalArgumentException("expected " + this.numBlocks + " blocks, got " + live.length);
+    }
+    final BlockIndex index = new BlockIndex(this.rsums, live, this.checksumLength);
+    for (int p = 0; p < this.numBlocks; p++) {
+      System.arraycopy(this.checksums, this.slots[p] * this.checksumLength, index.checksums, index.slots[p]
+          * this.checksumLength, this.checksumLength);
+    }
+    return index;
+  }
+
+  int getNumBlocks() {
+    return this.numBlocks;
+  }
+
+  /**
+   * Number of blocks found by lookups
+   *
+   * @return
+   */
+  int getNumLiveBlocks() {
+    return this.numLiveBlocks;
+  }
+
+  /**
+   * Returns whether the block at the given position is found by lookups
+   *
+   * @param position
+   * @return
+   */
+  boolean isLive(int position) {
+    return this.slots[position] < this.liveEnds[this.bucket(this.rsums[position])];
+  }
+
+  int getRsum(int position) {
+    return this.rsums[position];
+  }
+
+  /**
+   * Returns whether the block at the given position has the given block sum
+   *
+   * @param position
+   * @param sum
+   * @return
+   */
+  boolean matches(int position, BlockSum sum) {
+    return this.rsums[position] == sum.getRsum() && this.checksumEquals(this.slots[position], sum.getChecksum());
+  }
+
+  /**
+   * Returns the first slot holding a live block with the given sum, or -1 if there is no such block. The position of
+   * the block is obtained via {@link #getPosition(int)}, further blocks with the same sum via {@link #next(int)}.
+   *
+   * @param sum
+   * @return
+   */
+  int find(BlockSum sum) {
+    return this.find(sum.getRsum(), sum.getChecksum(), 0);
+  }
+
+  /**
+   * Returns the first slot holding a live block with the given rsum and the checksum stored at the given offset of the
+   * array, or -1 if there is no such block.
+   *
+   * @see #find(BlockSum)
+   */
+  int find(int rsum, byte[] checksum, int offset) {
+    final int b = this.bucket(rsum);
+    for (int s = this.bucketStarts[b], end = this.liveEnds[b]; s < end; s++) {
+      if (this.slotRsums[s] == rsum && this.checksumEquals(s, checksum, offset)) {
+        return s;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the first slot holding a retired block with the given sum, or -1 if there is no such block. Its content is
+   * complete in the target already, so matching it writes nothing, but still lets a scan skip over a block of content
+   * it has seen before. Further retired blocks with the same sum are obtained via {@link #nextRetired(int)}.
+   *
+   * @param sum
+   * @return
+   */
+  int findRetired(BlockSum sum) {
+    return this.findRetired(sum.getRsum(), sum.getChecksum(), 0);
+  }
+
+  /**
+   * Returns the first slot holding a retired block with the given rsum and the checksum stored at the given offset of
+   * the array, or -1 if there is no such block.
+   *
+   * @see #findRetired(BlockSum)
+   */
+  int findRetired(int rsum, byte[] checksum, int offset) {
+    final int b = this.bucket(rsum);
+    for (int s = this.liveEnds[b], end = this.bucketStarts[b + 1]; s < end; s++) {
+      if (this.slotRsums[s] == rsum && this.checksumEquals(s, checksum, offset)) {
+        return s;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the next slot after the given retired one holding a retired block with the same sum, or -1 if there is
+   * none.
+   *
+   * @param slot
+   * @return
+   */
+  int nextRetired(int slot) {
+    final int rsum = this.slotRsums[slot];
+    for (int s = slot + 1, end = this.bucketStarts[this.bucket(rsum) + 1]; s < end; s++) {
+      if (this.slotRsums[s] == rsum && this.checksumEquals(s, this.checksums, slot * this.checksumLength)) {
+        return s;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns whether a live block has the given rsum
+   *
+   * @param rsum
+   * @return
+   */
+  boolean containsRsum(int rsum) {
+    final int b = this.bucket(rsum);
+    for (int s = this.bucketStarts[b], end = this.liveEnds[b]; s < end; s++) {
+      if (this.slotRsums[s] == rsum) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the next slot after the given one holding a live block with the same sum, or -1 if there is none.
+   *
+   * @param slot
+   * @return
+   */
+  int next(int slot) {
+    final int rsum = this.slotRsums[slot];
+    for (int s = slot + 1, end = this.liveEnds[this.bucket(rsum)]; s < end; s++) {
+      if (this.slotRsums[s] == rsum && this.checksumEquals(s, this.checksums, slot * this.checksumLength)) {
+        return s;
+      }
+    }
+    return -1;
+  }
+
+  int getPosition(int slot) {
+    return this.positions[slot];
+  }
+
+  private boolean checksumEquals(int slot, byte[] checksum) {
+    return this.checksumEquals(slot, checksum, 0);
+  }
+
+  private boolean checksumEquals(int slot, byte[] checksum, int offset) {
+    final int start = slot * this.checksumLength;
+    for (int i = 0; i < this.checksumLength; i++) {
+      if (this.checksums[start + i] != checksum[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int bucket(int rsum) {
+    final int h = rsum * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & this.bucketMask;
+  }
+
+  /**
+   * Smallest power of two greater or equal to the number of blocks
+   */
+  static int numBuckets(int numBlocks) {
+    return numBlocks <= 1 ? 1 : Integer.highestOneBit(numBlocks - 1) << 1;
+  }
+
+}
@@ -25,17 +25,203 @@
  */
 package com.salesforce.zsync.internal;
 
+import java.io.IOException;
+
+import com.salesforce.zsync.internal.util.MD4Digest;
 import com.salesforce.zsync.internal.util.ReadableByteBuffer;
+import com.salesforce.zsync.internal.util.RollingReadableByteBuffer;
 
 public abstract class BlockMatcher {
 
+  static final int CHUNK_SIZE = 64 * 1024;
+  static final int BATCH_SIZE = 2 * MD4Digest.LANES;
+
+  // prefilter effectiveness: weak checksums tested, tests passed, and passes rejected by the exact rsum set
+  long prefilterLookups;
+  long prefilterHits;
+  long prefilterFalsePositives;
+
+  // work done matching: bytes the window passed over, strong checksums computed, rolling checksum candidates whose
+  // strong checksum matched no block, and blocks written to the target or rejected as complete already
+  long bytesScanned;
+  long strongChecksums;
+  long checksumMisses;
+  long blocksWritten;
+  long duplicateBlocks;
+
+  // input bytes copied for skipping over misses, starting at the given position in the input
+  byte[] chunk;
+  int chunkLength;
+  private long chunkPosition = -1;
+
+  final MD4Digest digest = new MD4Digest();
+  // offsets into the chunk of rolling checksum candidates found while skipping, rsums of their first block and the
+  // leading bytes of its strong checksum, computed together
+  final int[] candidateOffsets = new int[BATCH_SIZE];
+  final int[] candidateRsums = new int[BATCH_SIZE];
+  private byte[] candidateChecksums;
+  // whether skipping stopped at a candidate and set the matcher's checksum to the one resolved for it already
+  boolean checksumResolved;
+
+  /**
+   * Returns a new matcher for the given control file. Its lookup tables are built once per control file and shared.
+   */
   public static BlockMatcher create(ControlFile controlFile) {
-    return controlFile.getHeader().isSeqMatches() ? new DoubleBlockMatcher(controlFile) : new SingleBlockMatcher(
-        controlFile);
+    return controlFile.getMatcher().copy();
   }
 
   public abstract int getMatcherBlockSize();
 
   public abstract int match(OutputFileWriter targetFile, ReadableByteBuffer data);
 
+  /**
+   * Advances the buffer over consecutive offsets at which {@link #match(OutputFileWriter, ReadableByteBuffer)} would
+   * miss, without calling it for each of them: rolling checksums are updated in a tight loop over a chunk of the input
+   * and looked up in the prefilter and rolling checksum set. Offsets whose rolling checksum matches are collected into
+   * small batches, whose strong checksums are computed together and looked up in the target's index; those that do not
+   * occur in the target are skipped as well. Stops at the first offset at which the first block occurs in the target,
+   * leaving the remaining checks to the next call to match. Does nothing unless the last call to match missed.
+   *
+   * @param targetFile the target file last passed to match
+   * @param buffer the buffer last passed to match
+   * @param max maximum number of bytes to advance by
+   * @return number of bytes the buffer was advanced by
+   * @throws IOException
+   */
+  public abstract int skip(OutputFileWriter targetFile, RollingReadableByteBuffer buffer, int max) throws IOException;
+
+  /**
+   * Returns the offset of the buffer's current window in {@link #chunk}, refilling the chunk from the buffer unless it
+   * holds at least the window and one more byte. Returns -1 if fewer bytes are available.
+   */
+  final int chunkOffset(RollingReadableByteBuffer buffer) throws IOException {
+    final int windowSize = buffer.length();
+    final long position = buffer.position();
+    if (this.chunkPosition < 0 || position < this.chunkPosition
+        || position - this.chunkPosition + windowSize >= this.chunkLength) {
+      if (this.chunk == null) {
+        this.chunk = new byte[Math.max(CHUNK_SIZE, 4 * windowSize)];
+      }
+      this.chunkPosition = position;
+      this.chunkLength = buffer.copy(0, this.chunk, 0, this.chunk.length);
+      if (this.chunkLength <= windowSize) {
+        return -1;
+      }
+    }
+    return (int) (position - this.chunkPosition);
+  }
+
+  /**
+   * Computes the strong checksums of the first block at the first n collected candidates and returns the index of the
+   * first candidate whose block occurs in the target, live or retired, or -1 if none does. Candidates are hashed
+   * {@link MD4Digest#LANES} at a time and resolved in order, so that few are hashed past the first that occurs. Only
+   * the checksums up to that candidate count as computed, since the scan may reach the candidates past it again.
+   */
+  final int resolveCandidates(OutputFileWriter targetFile, int n, int blockSize, int checksumLength) {
+    if (this.candidateChecksums == null) {
+      this.candidateChecksums = new byte[BATCH_SIZE * checksumLength];
+    }
+    final BlockIndex index = targetFile.getIndex();
+    for (int k = 0; k < n; k++) {
+      if (k % MD4Digest.LANES == 0) {
+        final int count = Math.min(n, k + MD4Digest.LANES);
+        this.digest.digest(this.chunk, this.candidateOffsets, k, count, blockSize, this.candidateChecksums,
+            checksumLength);
+      }
+      final int rsum = this.candidateRsums[k];
+      final int offset = k * checksumLength;
+      if (index.find(rsum, this.candidateChecksums, offset) != -1
+          || index.findRetired(rsum, this.candidateChecksums, offset) != -1) {
+        this.strongChecksums += k + 1;
+        return k;
+      }
+    }
+    this.strongChecksums += n;
+    return -1;
+  }
+
+  /**
+   * Sets the given checksum to the one resolved for the k-th candidate, for the next call to match to reuse rather than
+   * compute again
+   */
+  final void setResolvedChecksum(Checksum checksum, int k) {
+    checksum.setChecksum(this.candidateChecksums, k * checksum.getLength());
+    this.checksumResolved = true;
+  }
+
+  /**
+   * Writes the block at the given offset of the buffer to the given position of the target, counting whether it was
+   * written or rejected since the position is complete already
+   */
+  final void writeBlock(OutputFileWriter targetFile, int position, ReadableByteBuffer buffer, int offset) {
+    if (targetFile.writeBlock(position, buffer, offset)) {
+      this.blocksWritten++;
+    } else {
+      this.duplicateBlocks++;
+    }
+  }
+
+  /**
+   * Advances the buffer by the given number of bytes, which may exceed the window size
+   */
+  static void advance(RollingReadableByteBuffer buffer, long bytes) throws IOException {
+    final int windowSize = buffer.length();
+    for (; bytes > windowSize; bytes -= windowSize) {
+      buffer.advance(windowSize);
+    }
+    buffer.advance((int) bytes);
+  }
+
+  /**
+   * Returns a new matcher in its initial state that shares the immutable lookup tables of this matcher.
+   *
+   * @return
+   */
+  public abstract BlockMatcher copy();
+
+  /**
+   * Returns this matcher to its initial state, e.g. to continue matching at an unrelated offset. Statistics are kept.
+   */
+  public abstract void reset();
+
+  /**
+   * Whether the next call to {@link #match(OutputFileWriter, ReadableByteBuffer)} depends on state carried over from
+   * previous calls. If not, the matcher behaves exactly as a newly created matcher would at the same offset.
+   *
+   * @return
+   */
+  public abstract boolean hasCarryOverState();
+
+  public long getPrefilterLookups() {
+    return this.prefilterLookups;
+  }
+
+  public long getPrefilterHits() {
+    return this.prefilterHits;
+  }
+
+  public long getPrefilterFalsePositives() {
+    return this.prefilterFalsePositives;
+  }
+
+  public long getBytesScanned() {
+    return this.bytesScanned;
+  }
+
+  public long getStrongChecksums() {
+    return this.strongChecksums;
+  }
+
+  public long getChecksumMisses() {
+    return this.checksumMisses;
+  }
+
+  public long getBlocksWritten() {
+    return this.blocksWritten;
+  }
+
+  public long getDuplicateBlocks() {
+    return this.duplicateBlocks;
+  }
+
 }
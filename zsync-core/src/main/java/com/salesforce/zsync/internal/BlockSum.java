@@ -25,17 +25,8 @@
  */
 package com.salesforce.zsync.internal;
 
-import com.google.common.base.Function;
-
 abstract class BlockSum {
 
-  static final Function<BlockSum, Integer> getRsum = new Function<BlockSum, Integer>() {
-    @Override
-    public Integer apply(BlockSum input) {
-      return input.getRsum();
-    }
-  };
-
   abstract int getRsum();
 
   abstract byte[] getChecksum();
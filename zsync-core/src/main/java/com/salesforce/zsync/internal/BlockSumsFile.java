@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block sums of a local file stored next to it, keyed by the file's size and modification time. Once a sync completes,
+ * the control file describes the output file block by block, so storing its block sums lets the next sync match the
+ * output file's aligned blocks against the new control file without reading the output file first.
+ * <p>
+ * The format consists of a magic number, the size and modification time of the file, the block size, the number of
+ * rsum and checksum bytes per block, the number of blocks and the block sums, encoded as in the control file.
+ */
+public class BlockSumsFile {
+
+  private static final int MAGIC = 0x7a73756d; // "zsum"
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Returns the path at which the block sums of the given file are stored
+   *
+   * @param file
+   * @return
+   */
+  public static Path getPath(Path file) {
+    return file.resolveSibling(file.getFileName() + ".zsums");
+  }
+
+  /**
+   * Stores the block sums of the given control file for the given file, which must be the file the control file
+   * describes.
+   *
+   * @param file
+   * @param controlFile
+   * @throws IOException
+   */
+  public static void write(Path file, ControlFile controlFile) throws IOException {
+    final Header header = controlFile.getHeader();
+    final List<? extends BlockSum> blockSums = controlFile.getBlockSums();
+    try (final DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(getPath(file)), BUFFER_SIZE))) {
+      out.writeInt(MAGIC);
+      out.writeLong(Files.size(file));
+      out.writeLong(Files.getLastModifiedTime(file).toMillis());
+      out.writeInt(header.getBlocksize());
+      out.writeByte(header.getRsumBytes());
+      out.writeByte(header.getChecksumBytes());
+      out.writeInt(blockSums.size());
+      for (BlockSum blockSum : blockSums) {
+        final int rsum = blockSum.getRsum();
+        for (int i = header.getRsumBytes() - 1; i >= 0; i--) {
+          out.writeByte(rsum >>> (i * 8));
+        }
+        out.write(blockSum.getChecksum(), 0, header.getChecksumBytes());
+      }
+    }
+  }
+
+  /**
+   * Returns the block sums stored for the given file, or null if none are stored or the file has been modified since.
+   *
+   * @param file
+   * @return
+   */
+  public static BlockSumsFile read(Path file) {
+    final Path path = getPath(file);
+    if (!Files.exists(path)) {
+      return null;
+    }
+    try (final DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+      final long size = Files.size(file);
+      if (in.readInt() != MAGIC || in.readLong() != size
+          || in.readLong() != Files.getLastModifiedTime(file).toMillis()) {
+        return null;
+      }
+      final int blockSize = in.readInt();
+      final int rsumBytes = in.readUnsignedByte();
+      final int checksumBytes = in.readUnsignedByte();
+      final int numBlocks = in.readInt();
+      if (blockSize <= 0 || numBlocks < 0 || (long) numBlocks * blockSize < size) {
+        return null;
+      }
+      return new BlockSumsFile(blockSize, rsumBytes, checksumBytes,
+          ImmutableBlockSum.readSums(in, numBlocks, rsumBytes, checksumBytes));
+    } catch (IOException | IllegalArgumentException e) {
+      // missing or damaged block sums only mean that the file has to be read
+      return null;
+    }
+  }
+
+  private final int blockSize;
+  private final int rsumBytes;
+  private final int checksumBytes;
+  private final List<? extends BlockSum> blockSums;
+
+  private BlockSumsFile(int blockSize, int rsumBytes, int checksumBytes, List<? extends BlockSum> blockSums) {
+    this.blockSize = blockSize;
+    this.rsumBytes = rsumBytes;
+    this.checksumBytes = checksumBytes;
+    this.blockSums = blockSums;
+  }
+
+  /**
+   * Returns the stored block sums truncated to the rsum and checksum lengths of the given control file, so that they
+   * can be looked up in its block index, or null if they are for a different block size or shorter.
+   *
+   * @param controlFile
+   * @return
+   */
+  List<? extends BlockSum> getBlockSums(ControlFile controlFile) {
+    final Header header = controlFile.getHeader();
+    if (header.getBlocksize() != this.blockSize || header.getRsumBytes() > this.rsumBytes
+        || header.getChecksumBytes() > this.checksumBytes) {
+      return null;
+    }
+    if (header.getRsumBytes() == this.rsumBytes && header.getChecksumBytes() == this.checksumBytes) {
+      return this.blockSums;
+    }
+    final int mask = header.getRsumBytes() == 4 ? -1 : (1 << (8 * header.getRsumBytes())) - 1;
+    final List<BlockSum> truncated = new ArrayList<>(this.blockSums.size());
+    for (BlockSum blockSum : this.blockSums) {
+      truncated.add(new ImmutableBlockSum(blockSum.getRsum() & mask, Arrays.copyOf(blockSum.getChecksum(),
+          header.getChecksumBytes())));
+    }
+    return truncated;
+  }
+
+}
@@ -26,27 +26,25 @@
 package com.salesforce.zsync.internal;
 
 import java.io.IOException;
-import java.security.DigestException;
-import java.security.MessageDigest;
 
+import com.salesforce.zsync.internal.util.MD4Digest;
 import com.salesforce.zsync.internal.util.ReadableByteBuffer;
-import com.salesforce.zsync.internal.util.WritableMessageDigest;
 
 class Checksum {
 
-  private final WritableMessageDigest writableMessageDigest;
+  private final MD4Digest digest;
   private final int length;
 
   // mutable
   private final byte[] bytes;
   private boolean set;
 
-  Checksum(MessageDigest digest, int length) {
-    this(new WritableMessageDigest(digest), length, new byte[digest.getDigestLength()], false);
+  Checksum(MD4Digest digest, int length) {
+    this(digest, length, new byte[MD4Digest.DIGEST_LENGTH], false);
   }
 
-  private Checksum(WritableMessageDigest writeableMessageDigest, int length, byte[] bytes, boolean set) {
-    this.writableMessageDigest = writeableMessageDigest;
+  private Checksum(MD4Digest digest, int length, byte[] bytes, boolean set) {
+    this.digest = digest;
     this.length = length;
     this.bytes = bytes;
     this.set = set;
@@ -73,16 +71,20 @@ class Checksum {
     this.set = true;
   }
 
+  void setChecksum(byte[] checksums, int offset) {
+    System.arraycopy(checksums, offset, this.bytes, 0, this.length);
+    this.set = true;
+  }
+
   void setChecksum(ReadableByteBuffer block) {
     setChecksum(block, 0, block.length());
   }
 
   void setChecksum(ReadableByteBuffer buffer, int offset, int length) {
-    this.writableMessageDigest.getMessageDigest().reset();
     try {
-      buffer.write(this.writableMessageDigest, offset, length);
-      this.writableMessageDigest.getMessageDigest().digest(this.bytes, 0, this.bytes.length);
-    } catch (IOException | DigestException e) {
+      // only the leading bytes are compared
+      this.digest.digest(buffer, offset, length, this.bytes, 0, this.length);
+    } catch (IOException e) {
       throw new RuntimeException("Unexpected error during digest computation", e);
     }
     this.set = true;
@@ -44,11 +44,17 @@ public class ControlFile {
 
   private final Header header;
   private final List<? extends BlockSum> blockSums;
+  private final Lookups lookups;
 
   public ControlFile(Header header, List<? extends BlockSum> blockSums) {
+    this(header, blockSums, new Lookups());
+  }
+
+  private ControlFile(Header header, List<? extends BlockSum> blockSums, Lookups lookups) {
     super();
     this.header = header;
     this.blockSums = blockSums;
+    this.lookups = lookups;
   }
 
   public Header getHeader() {
@@ -59,4 +65,56 @@ public class ControlFile {
     return this.blockSums;
   }
 
+  /**
+   * Returns a control file with the header of this control file and the block sums of the given one, sharing the
+   * lookup structures built from them. The given control file must describe the same target blocks, i.e. have the
+   * same target checksum, length, block size and hash lengths.
+   *
+   * @param other
+   * @return
+   */
+  public ControlFile withBlockSumsOf(ControlFile other) {
+    return new ControlFile(this.header, other.blockSums, other.lookups);
+  }
+
+  /**
+   * Returns the index of all target blocks, built on first use. The index is immutable, so output files and matchers
+   * for this control file share it, also across syncs.
+   *
+   * @return
+   */
+  BlockIndex getIndex() {
+    synchronized (this.lookups) {
+      if (this.lookups.index == null) {
+        this.lookups.index = new BlockIndex(this.blockSums, this.header.getChecksumBytes());
+      }
+      return this.lookups.index;
+    }
+  }
+
+  /**
+   * Returns a matcher whose immutable lookup tables are shared by all matchers for this control file, see
+   * {@link BlockMatcher#create(ControlFile)}. The returned matcher itself must only be copied, not used for matching.
+   *
+   * @return
+   */
+  BlockMatcher getMatcher() {
+    synchronized (this.lookups) {
+      if (this.lookups.matcher == null) {
+        this.lookups.matcher =
+            this.header.isSeqMatches() ? new DoubleBlockMatcher(this) : new SingleBlockMatcher(this);
+      }
+      return this.lookups.matcher;
+    }
+  }
+
+  /**
+   * Lookup structures derived from the block sums, built on first use and shared by control files with the same
+   * block sums
+   */
+  private static final class Lookups {
+    BlockIndex index;
+    BlockMatcher matcher;
+  }
+
 }
@@ -31,16 +31,13 @@ import static com.salesforce.zsync.internal.DoubleBlockMatcher.State.MATCHED_FIR
 import static com.salesforce.zsync.internal.DoubleBlockMatcher.State.MISSED;
 import static com.salesforce.zsync.internal.util.ZsyncUtil.toLong;
 
-import java.security.MessageDigest;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
-
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.salesforce.zsync.internal.util.BitHash;
+import com.salesforce.zsync.internal.util.LongHashSet;
 import com.salesforce.zsync.internal.util.ReadableByteBuffer;
-import com.salesforce.zsync.internal.util.ZsyncUtil;
+import com.salesforce.zsync.internal.util.RollingReadableByteBuffer;
 
 public class DoubleBlockMatcher extends BlockMatcher {
 
@@ -49,39 +46,58 @@ public class DoubleBlockMatcher extends BlockMatcher {
   }
 
   private final int blockSize;
-  private final Set<Long> rsumHashSet;
+  private final int rsumBytes;
+  private final int checksumBytes;
+  private final BitHash rsumBitHash;
+  private final LongHashSet rsumHashSet;
 
   // mutable state, carried over across invocations
   private State state;
   private final MutableBlockSum currentBlockSum;
   private final MutableBlockSum nextBlockSum;
-  private List<Integer> matches;
+  // reusable buffer of target positions matched at the current offset, valid up to numMatches
+  private int[] matches;
+  private int numMatches;
   private byte firstByte;
+  // rolling sums, leaving byte and prefilter hits before each batched candidate
+  private final int[] candidateStates = new int[6 * BATCH_SIZE];
 
   public DoubleBlockMatcher(ControlFile controlFile) {
     final Header header = controlFile.getHeader();
     this.blockSize = header.getBlocksize();
+    this.rsumBytes = header.getRsumBytes();
+    this.checksumBytes = header.getChecksumBytes();
 
     this.state = INIT;
-    final MessageDigest digest = ZsyncUtil.newMD4();
-    this.currentBlockSum =
-        new MutableBlockSum(digest, this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
-    this.nextBlockSum = new MutableBlockSum(digest, this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
-    this.rsumHashSet = computeRsumHashSet(controlFile.getBlockSums());
-  }
-
-  static Set<Long> computeRsumHashSet(Iterable<? extends BlockSum> blockSums) {
-    final ImmutableSet.Builder<Long> b = ImmutableSet.builder();
-    final Iterator<? extends BlockSum> it = blockSums.iterator();
-    if (it.hasNext()) {
-      BlockSum prev = it.next();
-      while (it.hasNext()) {
-        final BlockSum cur = it.next();
-        b.add(toLong(prev.getRsum(), cur.getRsum()));
-        prev = cur;
-      }
+    this.currentBlockSum = new MutableBlockSum(this.digest, this.blockSize, this.rsumBytes, this.checksumBytes);
+    this.nextBlockSum = new MutableBlockSum(this.digest, this.blockSize, this.rsumBytes, this.checksumBytes);
+    final BlockIndex index = controlFile.getIndex();
+    this.rsumBitHash = new BitHash(Math.max(0, index.getNumBlocks() - 1));
+    this.rsumHashSet = computeRsumHashSet(index, this.rsumBitHash);
+    this.matches = new int[4];
+  }
+
+  private DoubleBlockMatcher(DoubleBlockMatcher other) {
+    this.blockSize = other.blockSize;
+    this.rsumBytes = other.rsumBytes;
+    this.checksumBytes = other.checksumBytes;
+
+    this.state = INIT;
+    this.currentBlockSum = new MutableBlockSum(this.digest, this.blockSize, this.rsumBytes, this.checksumBytes);
+    this.nextBlockSum = new MutableBlockSum(this.digest, this.blockSize, this.rsumBytes, this.checksumBytes);
+    this.rsumBitHash = other.rsumBitHash;
+    this.rsumHashSet = other.rsumHashSet;
+    this.matches = new int[4];
+  }
+
+  static LongHashSet computeRsumHashSet(BlockIndex index, BitHash bitHash) {
+    final LongHashSet set = new LongHashSet(Math.max(0, index.getNumBlocks() - 1));
+    for (int p = 0; p + 1 < index.getNumBlocks(); p++) {
+      final long r = toLong(index.getRsum(p), index.getRsum(p + 1));
+      set.add(r);
+      bitHash.add(r);
     }
-    return b.build();
+    return set;
   }
 
   @Override
@@ -89,24 +105,55 @@ public class DoubleBlockMatcher extends BlockMatcher {
     return 2 * this.blockSize;
   }
 
+  @Override
+  public DoubleBlockMatcher copy() {
+    return new DoubleBlockMatcher(this);
+  }
+
+  @Override
+  public void reset() {
+    this.state = INIT;
+    this.checksumResolved = false;
+  }
+
+  @Override
+  public boolean hasCarryOverState() {
+    switch (this.state) {
+      case INIT:
+      case MISSED:
+        return false;
+      case MATCHED_FIRST:
+        // only a reused checksum makes the next step differ from a fresh double block lookup
+        return this.nextBlockSum.checksum.isSet();
+      case MATCHED_BOTH:
+        return true;
+      default:
+        throw new RuntimeException("unmatched state");
+    }
+  }
+
   @Override
   public int match(OutputFileWriter outputFile, ReadableByteBuffer buffer) {
+    final boolean resolved = this.checksumResolved;
+    this.checksumResolved = false;
     switch (this.state) {
       case INIT:
         // initially we have to compute the rsum from scratch for both blocks
         this.currentBlockSum.rsum.init(buffer, 0, this.blockSize);
         this.nextBlockSum.rsum.init(buffer, this.blockSize, this.blockSize);
-        this.matches = this.tryMatchBoth(outputFile, buffer);
-        return this.matches.isEmpty() ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
+        this.numMatches = this.tryMatchBoth(outputFile, buffer, false);
+        return this.numMatches == 0 ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
       case MISSED:
-        // if we missed last time, update rolling sums by one byte and reset checksums
+        // if we missed last time, update rolling sums by one byte and reset checksums, except for one skipping resolved
         final byte newByte = buffer.get(this.blockSize - 1);
         this.currentBlockSum.rsum.update(this.firstByte, newByte);
-        this.currentBlockSum.checksum.unset();
+        if (!resolved) {
+          this.currentBlockSum.checksum.unset();
+        }
         this.nextBlockSum.rsum.update(newByte, buffer.get(buffer.length() - 1));
         this.nextBlockSum.checksum.unset();
-        this.matches = this.tryMatchBoth(outputFile, buffer);
-        return this.matches.isEmpty() ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
+        this.numMatches = this.tryMatchBoth(outputFile, buffer, resolved);
+        return this.numMatches == 0 ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
       case MATCHED_FIRST:
         // if we matched the first block last time, reuse rolling sum for current block
         this.currentBlockSum.rsum.init(this.nextBlockSum.rsum);
@@ -116,15 +163,15 @@ public class DoubleBlockMatcher extends BlockMatcher {
         if (this.nextBlockSum.checksum.isSet()) {
           this.currentBlockSum.checksum.setChecksum(this.nextBlockSum.checksum);
           this.nextBlockSum.checksum.unset();
-          this.matches = this.tryMatchNext(outputFile, buffer);
+          this.numMatches = this.tryMatchNext(outputFile, buffer);
         }
         // Otherwise, try to match a double block based on the combined rolling sum
         else {
           this.currentBlockSum.checksum.unset();
           this.nextBlockSum.checksum.unset();
-          this.matches = this.tryMatchBoth(outputFile, buffer);
+          this.numMatches = this.tryMatchBoth(outputFile, buffer, false);
         }
-        return this.matches.isEmpty() ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
+        return this.numMatches == 0 ? this.missed(buffer) : this.matchedBoth(outputFile, buffer);
       case MATCHED_BOTH:
         // if we matched both blocks last time, reuse rolling sum and checksum for current block
         this.currentBlockSum.rsum.init(this.nextBlockSum.rsum);
@@ -132,81 +179,228 @@ public class DoubleBlockMatcher extends BlockMatcher {
         this.nextBlockSum.rsum.init(buffer, this.blockSize, this.blockSize);
         this.nextBlockSum.checksum.unset();
         // now try to find where current and next match (may overlap with previous matches)
-        this.matches = this.tryMatchNext(outputFile, buffer);
-        return this.matches.isEmpty() ? this.matchedFirst() : this.matchedBoth(outputFile, buffer);
+        this.numMatches = this.tryMatchNext(outputFile, buffer);
+        return this.numMatches == 0 ? this.matchedFirst() : this.matchedBoth(outputFile, buffer);
       default:
         throw new RuntimeException("unmatched state");
     }
   }
 
+  @Override
+  public int skip(OutputFileWriter targetFile, RollingReadableByteBuffer buffer, int max) throws IOException {
+    if (this.state != MISSED || max <= 0) {
+      return 0;
+    }
+    final int o = this.chunkOffset(buffer);
+    if (o < 0) {
+      return 0;
+    }
+    final byte[] c = this.chunk;
+    final int end = o + Math.min(max, this.chunkLength - o - 2 * this.blockSize);
+    final int mid = this.blockSize - 1;
+    final int last = 2 * this.blockSize - 1;
+    final Rsum current = this.currentBlockSum.rsum;
+    final Rsum next = this.nextBlockSum.rsum;
+    final int shift = current.blockShift;
+    final int bitmask = current.bitmask;
+    final BitHash bitHash = this.rsumBitHash;
+    final int[] offsets = this.candidateOffsets;
+    final int[] states = this.candidateStates;
+    // rolling sums of the previous window and the byte leaving it, as in the MISSED case of match
+    int a = current.a;
+    int b = current.b;
+    int na = next.a;
+    int nb = next.b;
+    int out = this.firstByte & 0xff;
+    int hits = 0;
+    // candidates collected but not resolved yet, candidates resolved as misses and the first one that is not
+    int n = 0;
+    int misses = 0;
+    int stop = -1;
+    int i = o;
+    for (; i < end; i++) {
+      // the byte entering the current block is the one leaving the next block
+      final int m = c[i + mid] & 0xff;
+      final int a1 = a + m - out;
+      final int b1 = b + a1 - (out << shift);
+      final int na1 = na + (c[i + last] & 0xff) - m;
+      final int nb1 = nb + na1 - (m << shift);
+      final int r = ((a1 << 16) | (b1 & 0xffff)) & bitmask;
+      final long rr = toLong(r, ((na1 << 16) | (nb1 & 0xffff)) & bitmask);
+      if (bitHash.mightContain(rr)) {
+        if (this.rsumHashSet.contains(rr)) {
+          // a candidate is a miss if its first block does not occur in the target; only batch candidates close
+          // together, since a match makes the lookahead useless
+          if (n > 0 && i - offsets[0] >= this.blockSize) {
+            if ((stop = this.resolveCandidates(targetFile, n, this.blockSize, this.checksumBytes)) >= 0) {
+              break;
+            }
+            misses += n;
+            n = 0;
+          }
+          offsets[n] = i;
+          this.candidateRsums[n] = r;
+          states[6 * n] = a;
+          states[6 * n + 1] = b;
+          states[6 * n + 2] = na;
+          states[6 * n + 3] = nb;
+          states[6 * n + 4] = out;
+          states[6 * n + 5] = hits;
+          if (++n == BATCH_SIZE) {
+            if ((stop = this.resolveCandidates(targetFile, n, this.blockSize, this.checksumBytes)) >= 0) {
+              break;
+            }
+            misses += n;
+            n = 0;
+          }
+        } else {
+          hits++;
+        }
+      }
+      a = a1;
+      b = b1;
+      na = na1;
+      nb = nb1;
+      out = c[i] & 0xff;
+    }
+    if (stop < 0 && n > 0) {
+      stop = this.resolveCandidates(targetFile, n, this.blockSize, this.checksumBytes);
+      misses += stop < 0 ? n : 0;
+    }
+    if (stop >= 0) {
+      // continue matching at the candidate from the state before it
+      misses += stop;
+      i = offsets[stop];
+      a = states[6 * stop];
+      b = states[6 * stop + 1];
+      na = states[6 * stop + 2];
+      nb = states[6 * stop + 3];
+      out = states[6 * stop + 4];
+      hits = states[6 * stop + 5];
+      this.setResolvedChecksum(this.currentBlockSum.checksum, stop);
+    }
+    current.a = (short) a;
+    current.b = (short) b;
+    next.a = (short) na;
+    next.b = (short) nb;
+    this.firstByte = (byte) out;
+    final int skipped = i - o;
+    this.prefilterLookups += skipped;
+    this.prefilterHits += hits + misses;
+    this.prefilterFalsePositives += hits;
+    this.bytesScanned += skipped;
+    this.checksumMisses += misses;
+    advance(buffer, skipped);
+    return skipped;
+  }
+
   private int missed(ReadableByteBuffer buffer) {
     this.state = MISSED;
     this.firstByte = buffer.get(0);
+    this.bytesScanned++;
     return 1;
   }
 
   private int matchedFirst() {
     this.state = MATCHED_FIRST;
+    this.bytesScanned += this.blockSize;
     return this.blockSize;
   }
 
   private int matchedBoth(OutputFileWriter outputFile, ReadableByteBuffer buffer) {
-    for (int p : this.matches) {
-      outputFile.writeBlock(p, buffer, 0);
+    for (int i = 0; i < this.numMatches; i++) {
+      int p = this.matches[i];
+      this.writeBlock(outputFile, p, buffer, 0);
       if (++p != outputFile.getNumBlocks()) {
-        outputFile.writeBlock(p, buffer, this.blockSize);
+        this.writeBlock(outputFile, p, buffer, this.blockSize);
       }
     }
     this.state = MATCHED_BOTH;
+    this.bytesScanned += this.blockSize;
     return this.blockSize;
   }
 
-  private List<Integer> tryMatchBoth(final OutputFileWriter outputFile, final ReadableByteBuffer buffer) {
-    final List<Integer> matches;
-    final Long r = toLong(this.currentBlockSum.rsum.toInt(), this.nextBlockSum.rsum.toInt());
-    // cheap negative check followed by more expensive check
-    if (this.rsumHashSet.contains(r)) {
-      // need to compute current block sum
-      this.currentBlockSum.checksum.setChecksum(buffer, 0, this.blockSize);
-      matches = this.tryMatchNext(outputFile, buffer);
-    } else {
-      matches = Collections.emptyList();
+  /**
+   * Looks up the combined rolling sum of the current and next block and, if present, collects matching positions into
+   * the match buffer.
+   *
+   * @param resolved whether the current block's checksum was resolved while skipping already
+   * @return number of matches collected
+   */
+  private int tryMatchBoth(final OutputFileWriter outputFile, final ReadableByteBuffer buffer, boolean resolved) {
+    final long r = toLong(this.currentBlockSum.rsum.toInt(), this.nextBlockSum.rsum.toInt());
+    // cheap negative checks followed by more expensive check
+    if (this.isCandidate(r)) {
+      // need to compute current block sum, unless skipping did
+      if (!resolved) {
+        this.currentBlockSum.checksum.setChecksum(buffer, 0, this.blockSize);
+        this.strongChecksums++;
+      }
+      final int n = this.tryMatchNext(outputFile, buffer);
+      if (n == 0) {
+        this.checksumMisses++;
+      }
+      return n;
     }
-    return matches;
+    return 0;
   }
 
-  private List<Integer> tryMatchNext(final OutputFileWriter outputFile, final ReadableByteBuffer buffer) {
-    final List<Integer> positions = outputFile.getPositions(this.currentBlockSum);
-    return positions.isEmpty() ? Collections.<Integer>emptyList() : this.filterMatches(outputFile, buffer, positions);
+  private boolean isCandidate(long r) {
+    this.prefilterLookups++;
+    if (!this.rsumBitHash.mightContain(r)) {
+      return false;
+    }
+    this.prefilterHits++;
+    if (!this.rsumHashSet.contains(r)) {
+      this.prefilterFalsePositives++;
+      return false;
+    }
+    return true;
   }
 
-  private List<Integer> filterMatches(final OutputFileWriter outputFile, ReadableByteBuffer buffer, List<Integer> positions) {
-    // optimize common case
-    if (positions.size() == 1) {
-      return this.isNextMatch(outputFile, buffer, positions.get(0)) ? positions : Collections.<Integer>emptyList();
-    } else {
-      final ImmutableList.Builder<Integer> b = ImmutableList.builder();
-      for (Integer position : positions) {
-        if (this.isNextMatch(outputFile, buffer, position)) {
-          b.add(position);
+  /**
+   * Collects all positions of the current block whose successor matches the next block into the match buffer. If there
+   * are none among the live blocks, collects the first such retired block, whose writes are rejected as complete
+   * already, so that a seed holding completed content is skipped a block at a time rather than rolled over.
+   *
+   * @return number of matches collected
+   */
+  private int tryMatchNext(final OutputFileWriter outputFile, final ReadableByteBuffer buffer) {
+    final BlockIndex index = outputFile.getIndex();
+    int n = 0;
+    for (int slot = index.find(this.currentBlockSum); slot != -1; slot = index.next(slot)) {
+      final int position = index.getPosition(slot);
+      if (this.isNextMatch(index, buffer, position)) {
+        if (n == this.matches.length) {
+          this.matches = Arrays.copyOf(this.matches, 2 * n);
+        }
+        this.matches[n++] = position;
+      }
+    }
+    if (n == 0) {
+      for (int slot = index.findRetired(this.currentBlockSum); slot != -1; slot = index.nextRetired(slot)) {
+        final int position = index.getPosition(slot);
+        if (this.isNextMatch(index, buffer, position)) {
+          this.matches[n++] = position;
+          break;
         }
       }
-      return b.build();
     }
+    return n;
   }
 
-  private boolean isNextMatch(OutputFileWriter outputFile, ReadableByteBuffer buffer, Integer position) {
-    final Integer next = position + 1;
-    if (next == outputFile.getNumBlocks()) {
+  private boolean isNextMatch(BlockIndex index, ReadableByteBuffer buffer, int position) {
+    final int next = position + 1;
+    if (next == index.getNumBlocks()) {
       return true;
     }
-    final BlockSum nextTargetBlock = outputFile.get(next);
-    if (nextTargetBlock.getRsum() == this.nextBlockSum.rsum.toInt()) {
+    if (index.getRsum(next) == this.nextBlockSum.rsum.toInt()) {
       // compute next block sum only once
       if (!this.nextBlockSum.checksum.isSet()) {
         this.nextBlockSum.checksum.setChecksum(buffer, this.blockSize, this.blockSize);
+        this.strongChecksums++;
       }
-      return nextTargetBlock.equals(this.nextBlockSum);
+      return index.matches(next, this.nextBlockSum);
     }
     return false;
   }
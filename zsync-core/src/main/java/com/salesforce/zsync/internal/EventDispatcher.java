@@ -159,6 +159,142 @@ public class EventDispatcher {
     };
   }
 
+  public void inputFilePrefilterStatistics(long lookups, long hits, long falsePositives) {
+    this.observer.inputFilePrefilterStatistics(lookups, hits, falsePositives);
+  }
+
+  public void inputFileMatchStatistics(long bytesScanned, long strongChecksums, long checksumMisses,
+      long blocksWritten, long duplicateBlocks) {
+    this.observer.inputFileMatchStatistics(bytesScanned, strongChecksums, checksumMisses, blocksWritten,
+        duplicateBlocks);
+  }
+
+  public void inputFileBytesSkipped(long bytes) {
+    this.observer.inputFileBytesSkipped(bytes);
+  }
+
+  /**
+   * Returns a dispatcher for reading a single input file concurrently with other input files. The returned dispatcher
+   * buffers input file events and forwards them to this dispatcher's observer in one uninterrupted sequence, while
+   * holding the given lock, once the input file is complete. This keeps observers that attribute bytes to the current
+   * input file consistent.
+   *
+   * @param lock
+   * @return
+   */
+  public EventDispatcher bufferInputFileEvents(final Object lock) {
+    return new EventDispatcher(new ZsyncObserver() {
+      private Path inputFile;
+      private long length;
+      private long bytesRead;
+      private long[] prefilterStatistics;
+      private long[] matchStatistics;
+      private long bytesSkipped;
+
+      @Override
+      public void inputFileReadingStarted(Path inputFile, long length) {
+        this.inputFile = inputFile;
+        this.length = length;
+      }
+
+      @Override
+      public void bytesRead(long bytes) {
+        this.bytesRead += bytes;
+      }
+
+      @Override
+      public void inputFilePrefilterStatistics(long lookups, long hits, long falsePositives) {
+        this.prefilterStatistics = new long[] { lookups, hits, falsePositives };
+      }
+
+      @Override
+      public void inputFileMatchStatistics(long bytesScanned, long strongChecksums, long checksumMisses,
+          long blocksWritten, long duplicateBlocks) {
+        this.matchStatistics =
+            new long[] { bytesScanned, strongChecksums, checksumMisses, blocksWritten, duplicateBlocks };
+      }
+
+      @Override
+      public void inputFileBytesSkipped(long bytes) {
+        this.bytesSkipped += bytes;
+      }
+
+      @Override
+      public void inputFileReadingComplete() {
+        final ZsyncObserver observer = EventDispatcher.this.observer;
+        synchronized (lock) {
+          observer.inputFileReadingStarted(this.inputFile, this.length);
+          if (this.bytesRead > 0) {
+            observer.bytesRead(this.bytesRead);
+          }
+          if (this.prefilterStatistics != null) {
+            observer.inputFilePrefilterStatistics(this.prefilterStatistics[0], this.prefilterStatistics[1],
+                this.prefilterStatistics[2]);
+          }
+          if (this.matchStatistics != null) {
+            observer.inputFileMatchStatistics(this.matchStatistics[0], this.matchStatistics[1],
+                this.matchStatistics[2], this.matchStatistics[3], this.matchStatistics[4]);
+          }
+          if (this.bytesSkipped > 0) {
+            observer.inputFileBytesSkipped(this.bytesSkipped);
+          }
+          observer.inputFileReadingComplete();
+        }
+      }
+    });
+  }
+
+  public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
+    this.observer.remoteFileDownloadingInitiated(uri, ranges);
+  }
+
+  public void remoteFileDownloadingComplete() {
+    this.observer.remoteFileDownloadingComplete();
+  }
+
+  /**
+   * Returns a dispatcher shared by remote file requests that are issued concurrently and reported as one download of
+   * the given length. The returned dispatcher forwards the start of the first request and the bytes and ranges of all
+   * requests to this dispatcher's observer as they happen, holding the given lock, and drops the other initiated,
+   * started and complete events. The caller reports the initiation and completion of the whole download.
+   *
+   * @param lock
+   * @param length
+   * @return
+   */
+  public EventDispatcher joinRemoteFileEvents(final Object lock, final long length) {
+    return new EventDispatcher(new ZsyncObserver() {
+      private boolean started;
+
+      @Override
+      public void remoteFileDownloadingStarted(URI uri, long ignored) {
+        final ZsyncObserver observer = EventDispatcher.this.observer;
+        synchronized (lock) {
+          if (!this.started) {
+            this.started = true;
+            observer.remoteFileDownloadingStarted(uri, length);
+          }
+        }
+      }
+
+      @Override
+      public void bytesDownloaded(long bytes) {
+        final ZsyncObserver observer = EventDispatcher.this.observer;
+        synchronized (lock) {
+          observer.bytesDownloaded(bytes);
+        }
+      }
+
+      @Override
+      public void remoteFileRangeReceived(ContentRange range) {
+        final ZsyncObserver observer = EventDispatcher.this.observer;
+        synchronized (lock) {
+          observer.remoteFileRangeReceived(range);
+        }
+      }
+    });
+  }
+
   public RangeTransferListener getRemoteFileDownloadListener() {
     return new RangeTransferListener() {
       @Override
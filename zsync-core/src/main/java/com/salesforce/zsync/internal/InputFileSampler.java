@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static com.salesforce.zsync.internal.util.ZsyncUtil.computeRsum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.salesforce.zsync.internal.util.MD4Digest;
+
+/**
+ * Estimates how many blocks of the target an input file holds by probing a few regions spread evenly across it. Each
+ * region spans two blocks less one byte, so that a target block lying anywhere in it is found at one of its offsets
+ * regardless of its alignment in the input file. Rolling checksums are looked up in the target's index and strong
+ * checksums computed only where they occur.
+ */
+public class InputFileSampler {
+
+  private final OutputFileWriter targetFile;
+  private final int blockSize;
+  private final int checksumLength;
+  private final Rsum rsum;
+  private final MD4Digest digest = new MD4Digest();
+  private final byte[] region;
+  private final byte[] checksum;
+
+  public InputFileSampler(OutputFileWriter targetFile, ControlFile controlFile) {
+    final Header header = controlFile.getHeader();
+    this.targetFile = targetFile;
+    this.blockSize = header.getBlocksize();
+    this.checksumLength = header.getChecksumBytes();
+    this.rsum = new Rsum(header.getRsumBytes(), this.blockSize);
+    this.region = new byte[2 * this.blockSize - 1];
+    this.checksum = new byte[this.checksumLength];
+  }
+
+  /**
+   * Returns the number of the given number of regions of the input file in which a block of the target occurs. Input
+   * files too small to hold the given number of separate regions are probed in fewer regions.
+   *
+   * @param channel channel of the input file
+   * @param samples number of regions to probe
+   * @return number of regions in which a block of the target occurs
+   * @throws IOException
+   */
+  public int sample(FileChannel channel, int samples) throws IOException {
+    if (samples < 1) {
+      throw new IllegalArgumentException("samples must be a positive integer: " + samples);
+    }
+    final long size = channel.size();
+    final long regions = Math.max(1, Math.min(samples, size / this.region.length));
+    final long spacing = regions == 1 ? 0 : (size - this.region.length) / (regions - 1);
+    int matches = 0;
+    for (long i = 0; i < regions; i++) {
+      if (this.matches(channel, i * spacing)) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Reads the region starting at the given position, padded with zeros past the end of file like the scan, and returns
+   * whether a block of the target occurs at any of its offsets.
+   */
+  private boolean matches(FileChannel channel, long position) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(this.region);
+    while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+    }
+    final int length = buffer.position();
+    if (length == 0) {
+      return false;
+    }
+    // the file is padded to at least one block, but offsets past the end of file cannot hold a block
+    final int end = Math.max(1, length - this.blockSize + 1);
+    for (int i = length; i < this.region.length; i++) {
+      this.region[i] = 0;
+    }
+    final BlockIndex index = this.targetFile.getIndex();
+    final int first = computeRsum(this.region, 0, this.blockSize);
+    this.rsum.a = (short) (first >>> 16);
+    this.rsum.b = (short) first;
+    for (int o = 0; o < end; o++) {
+      if (o > 0) {
+        this.rsum.update(this.region[o - 1], this.region[o + this.blockSize - 1]);
+      }
+      final int r = this.rsum.toInt();
+      if (index.containsRsum(r)) {
+        this.digest.digest(this.region, o, this.blockSize, this.checksum, 0, this.checksumLength);
+        if (index.find(r, this.checksum, 0) != -1) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+}
@@ -25,7 +25,7 @@
  */
 package com.salesforce.zsync.internal;
 
-import java.security.MessageDigest;
+import com.salesforce.zsync.internal.util.MD4Digest;
 
 
 class MutableBlockSum extends BlockSum {
@@ -33,7 +33,7 @@ class MutableBlockSum extends BlockSum {
   final Rsum rsum;
   final Checksum checksum;
 
-  MutableBlockSum(MessageDigest digest, int blockSize, int rsumLength, int checksumLength) {
+  MutableBlockSum(MD4Digest digest, int blockSize, int rsumLength, int checksumLength) {
     this(new Rsum(rsumLength, blockSize), new Checksum(digest, checksumLength));
   }
 
@@ -29,33 +29,53 @@ import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static java.nio.file.attribute.FileTime.fromMillis;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableListMultimap;
-import com.google.common.collect.ListMultimap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.salesforce.zsync.http.ContentRange;
 import com.salesforce.zsync.internal.util.ReadableByteBuffer;
 import com.salesforce.zsync.internal.util.TransferListener;
 import com.salesforce.zsync.internal.util.ZsyncUtil;
 import com.salesforce.zsync.internal.util.HttpClient.RangeReceiver;
+import com.salesforce.zsync.internal.util.MD4Digest;
 import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
 
 public class OutputFileWriter implements RangeReceiver, Closeable {
 
+  private static final int HASH_BUFFER_SIZE = 64 * 1024;
+  private static final int PREALLOCATION_CHUNK_SIZE = 1024 * 1024;
+
   // immutable state
   private final Path path;
   private final Path tempPath;
@@ -65,13 +85,26 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
   private final long length;
   private final String sha1;
   private final long mtime;
-  private final List<BlockSum> blockSums;
-  private final ListMultimap<BlockSum, Integer> positions;
-  // mutable state
+  private final boolean seqMatches;
+  private final int checksumBytes;
+  private final List<? extends BlockSum> blockSums;
+  // mutable state, safe for concurrent writers: blocks are claimed in the bitmap before they are written and counted
+  // as completed once written, and writes are positional
   private final FileChannel channel;
-  private final boolean[] completed;
-  private int blocksRemaining;
-  private TransferListener listener;
+  private final BlockBitmap completed;
+  private final AtomicInteger blocksRemaining;
+  // index of the blocks that still need to be matched, replaced as completed blocks are retired
+  private volatile BlockIndex index;
+  // number of blocks live in the index that could be retired
+  private final AtomicInteger retirable = new AtomicInteger();
+  private final TransferListener listener;
+  // blocks counted as completed once written, whose contiguous prefix is hashed in the background, the block the
+  // hashing waits for if any, and whether it should stop waiting since the writer is closing
+  private final BlockBitmap written;
+  private volatile int awaited = -1;
+  private volatile boolean closing;
+  private final MessageDigest sha1Digest = ZsyncUtil.newSHA1();
+  private final Future<Long> hashing;
 
   public OutputFileWriter(Path path, ControlFile controlFile, ResourceTransferListener<Path> listener)
       throws IOException {
@@ -84,6 +117,9 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
     this.lastBlockSize = (int) (this.length % this.blockSize == 0 ? this.blockSize : this.length % this.blockSize);
     this.sha1 = header.getSha1();
     this.mtime = header.getMtime().getTime();
+    this.seqMatches = header.isSeqMatches();
+    this.checksumBytes = header.getChecksumBytes();
+    this.blockSums = controlFile.getBlockSums();
 
     listener.start(this.path, this.length);
 
@@ -97,81 +133,148 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
     } else {
       this.tempPath = Paths.get(tmpName);
     }
-    this.channel = FileChannel.open(this.tempPath, CREATE, WRITE, READ);
+    // discard what an interrupted sync left behind, and set the file's length so that blocks are written into place;
+    // this leaves the file sparse, its space is allocated by preallocate()
+    this.channel = FileChannel.open(this.tempPath, CREATE, TRUNCATE_EXISTING, WRITE, READ);
+    if (this.length > 0) {
+      this.channel.write(ByteBuffer.allocate(1), this.length - 1);
+    }
 
+    this.index = controlFile.getIndex();
+    this.completed = new BlockBitmap(this.index.getNumBlocks());
+    this.blocksRemaining = new AtomicInteger(this.completed.size());
+    this.written = new BlockBitmap(this.completed.size());
 
-    this.blockSums = ImmutableList.copyOf(controlFile.getBlockSums());
-    this.positions = indexPositions(this.blockSums);
-    this.completed = new boolean[this.blockSums.size()];
-    this.blocksRemaining = this.completed.length;
+    final ExecutorService executor =
+        Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("zsync-sha1-%d").setDaemon(true)
+            .build());
+    this.hashing = executor.submit(new Callable<Long>() {
+      @Override
+      public Long call() throws IOException, InterruptedException {
+        return OutputFileWriter.this.hashWrittenPrefix();
+      }
+    });
+    executor.shutdown();
   }
 
-  static ListMultimap<BlockSum, Integer> indexPositions(List<BlockSum> blockSums) {
-    final ImmutableListMultimap.Builder<BlockSum, Integer> b = ImmutableListMultimap.builder();
-    for (int i = 0; i < blockSums.size(); i++) {
-      b.put(blockSums.get(i), i);
-    }
-    return b.build();
+  /**
+   * Returns the path of the output file, which is replaced once the output file is complete
+   */
+  public Path getPath() {
+    return this.path;
   }
 
   public int getNumBlocks() {
-    return this.blockSums.size();
+    return this.index.getNumBlocks();
   }
 
-  public BlockSum get(int index) {
-    return this.blockSums.get(index);
-  }
-
-  public List<Integer> getPositions(BlockSum sum) {
-    return this.positions.get(sum);
+  BlockIndex getIndex() {
+    return this.index;
   }
 
   public boolean writeBlock(int position, ReadableByteBuffer data) {
     return this.writeBlock(position, data, 0);
   }
 
+  /**
+   * Writes the block at the given offset of the buffer to the given position unless the position has been claimed by
+   * another write already. May be called concurrently.
+   *
+   * @return whether the block was written
+   */
   public boolean writeBlock(int position, ReadableByteBuffer data, int offset) {
-    if (this.completed[position]) {
+    if (!this.completed.set(position)) {
       return false;
     }
-    final int l = position == this.completed.length - 1 ? this.lastBlockSize : this.blockSize;
+    final int l = position == this.completed.size() - 1 ? this.lastBlockSize : this.blockSize;
     try {
-      this.channel.position(position * this.blockSize);
-      data.write(this.channel, offset, l);
-      this.listener.transferred(l);
+      data.write(new PositionedChannel(this.channel, this.offset(position)), offset, l);
     } catch (IOException e) {
       throw new RuntimeException("Failed to read block at position " + position, e);
     }
-    this.blocksRemaining--;
-    return this.completed[position] = true;
+    this.transferred(l);
+    this.complete(position);
+    return true;
   }
 
+  /**
+   * Returns the ranges of the output file that are not complete yet, in order
+   */
   public List<ContentRange> getMissingRanges() {
-    final ImmutableList.Builder<ContentRange> b = ImmutableList.builder();
-    long start = -1;
-    for (int i = 0; i < this.completed.length; i++) {
-      if (this.completed[i]) {
-        // if we're in a range, end it
-        if (start != -1) {
-          b.add(new ContentRange(start, i * this.blockSize - 1));
-          start = -1;
-        }
-      } else {
-        // if we're not in a range, start one
-        if (start == -1) {
-          start = i * this.blockSize;
-        }
-        // if this is the last block in the file map, we need to end the range
-        if (i == this.completed.length - 1) {
-          b.add(new ContentRange(start, this.length - 1));
+    return ImmutableList.copyOf(this.missingRanges());
+  }
+
+  /**
+   * Returns an iterator over the ranges of the output file that are not complete yet, in order. Each range is found
+   * when the iterator reaches it, by scanning the completed blocks a word at a time, so ranges are not materialized
+   * up front and blocks completed meanwhile are left out of ranges not reached yet.
+   */
+  public Iterator<ContentRange> missingRanges() {
+    return new AbstractIterator<ContentRange>() {
+      private int position;
+
+      @Override
+      protected ContentRange computeNext() {
+        final BlockBitmap completed = OutputFileWriter.this.completed;
+        final int first = completed.nextClearBit(this.position);
+        if (first == completed.size()) {
+          return this.endOfData();
         }
+        this.position = completed.nextSetBit(first + 1);
+        return new ContentRange(OutputFileWriter.this.offset(first), this.position == completed.size()
+            ? OutputFileWriter.this.length - 1 : OutputFileWriter.this.offset(this.position) - 1);
+      }
+    };
+  }
+
+  /**
+   * Marks the blocks of the target that consist of zeros only as completed without writing them, leaving holes in the
+   * output file, which reads as zeros there since it is sized up front. Blocks are recognized from their sums in the
+   * control file; with sequential matches only runs of at least two such blocks are, so that the combined checksum
+   * length guards against false positives as it does when matching. Should be called before any blocks are written.
+   *
+   * @return number of blocks marked as completed
+   */
+  public int completeZeroBlocks() {
+    final byte[] checksum = new byte[MD4Digest.DIGEST_LENGTH];
+    new MD4Digest().digest(new byte[this.blockSize], 0, this.blockSize, checksum, 0, checksum.length);
+    final BlockSum zeros = new ImmutableBlockSum(0, Arrays.copyOf(checksum, this.checksumBytes));
+    final boolean[] zero = new boolean[this.completed.size()];
+    for (int i = 0; i < zero.length; i++) {
+      zero[i] = zeros.equals(this.blockSums.get(i));
+    }
+    int n = 0;
+    for (int i = 0; i < zero.length; i++) {
+      if (zero[i] && (!this.seqMatches || (i > 0 && zero[i - 1]) || (i + 1 < zero.length && zero[i + 1]))
+          && this.completed.set(i)) {
+        this.complete(i);
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Allocates the disk space of the blocks that are not complete yet by writing zeros to them in order, so that the
+   * file system can lay out the output file contiguously instead of as blocks arrive out of order. Blocks completed
+   * already, e.g. zero blocks left as holes, stay holes. Should be called before any blocks are written.
+   *
+   * @throws IOException
+   */
+  public void preallocate() throws IOException {
+    final ByteBuffer zeros = ByteBuffer.allocate(PREALLOCATION_CHUNK_SIZE);
+    for (Iterator<ContentRange> ranges = this.missingRanges(); ranges.hasNext();) {
+      final ContentRange range = ranges.next();
+      for (long position = range.first(); position <= range.last();) {
+        zeros.clear();
+        zeros.limit((int) Math.min(zeros.capacity(), range.last() + 1 - position));
+        position += this.channel.write(zeros, position);
       }
     }
-    return b.build();
   }
 
   public boolean isComplete() {
-    return this.blocksRemaining == 0;
+    return this.blocksRemaining.get() == 0;
   }
 
   @Override
@@ -183,31 +286,182 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
       throw new RuntimeException("Invalid range received: last byte not block aligned");
     }
 
+    final int first = (int) (range.first() / this.blockSize);
+    final int last =
+        (int) (range.last() + 1 == this.length ? this.completed.size() - 1 : (range.last() + 1) / this.blockSize - 1);
+    // write runs of missing blocks and skip over completed ones, e.g. matched blocks inside coalesced ranges
     final ReadableByteChannel src = Channels.newChannel(in);
-    final long length = range.length();
-    long remaining = length;
-    do {
-      long transferred = this.channel.transferFrom(src, range.first(), length);
+    long position = range.first();
+    for (int i = first; i <= last;) {
+      final boolean missing = !this.completed.get(i);
+      final int end = Math.min(last + 1, missing ? this.completed.nextSetBit(i) : this.completed.nextClearBit(i));
+      final long endPosition = Math.min(range.last() + 1, this.offset(end));
+      if (missing) {
+        this.transferFrom(src, position, endPosition - position);
+        for (int j = i; j < end; j++) {
+          if (this.completed.set(j)) {
+            this.complete(j);
+          }
+        }
+      } else {
+        ByteStreams.skipFully(in, endPosition - position);
+      }
+      position = endPosition;
+      i = end;
+    }
+  }
+
+  private void transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+    long remaining = count;
+    while (remaining > 0) {
+      final long transferred = this.channel.transferFrom(src, position + count - remaining, remaining);
+      if (transferred == 0) {
+        throw new IOException("Range ended " + remaining + " bytes before position " + (position + count));
+      }
       remaining -= transferred;
-      this.listener.transferred(transferred);
-    } while (remaining > 0);
+      this.transferred(transferred);
+    }
+  }
 
-    final int first = (int) (range.first() / this.blockSize);
-    final int last =
-        (int) (range.last() + 1 == this.length ? this.completed.length - 1 : (range.last() + 1) / this.blockSize - 1);
-    for (int i = first; i <= last; i++) {
-      if (!this.completed[i]) {
-        this.blocksRemaining--;
-        this.completed[i] = true;
+  /**
+   * Returns the offset of the block at the given position in the output file
+   */
+  private long offset(int position) {
+    return (long) position * this.blockSize;
+  }
+
+  /**
+   * Notifies the listener while holding the lock on this writer, which scanners of input files hold for their
+   * notifications as well, so that observers are called by one thread at a time
+   */
+  private synchronized void transferred(long bytes) {
+    this.listener.transferred(bytes);
+  }
+
+  /**
+   * Counts the given block, claimed and written by the caller, as completed, waking up the hashing if it waits for the
+   * block. Once the blocks that no longer need to be
+   * matched make up a quarter of the index's live blocks, the index is replaced by one in which they are retired, so
+   * that lookups get cheaper as the output file fills up. Lookups in progress keep using the index they started with.
+   */
+  private void complete(int position) {
+    this.blocksRemaining.decrementAndGet();
+    this.written.set(position);
+    if (position == this.awaited) {
+      synchronized (this.written) {
+        this.written.notifyAll();
+      }
+    }
+    int retirable = 0;
+    if (this.isRetirable(position)) {
+      retirable++;
+    }
+    if (this.seqMatches && position > 0 && this.isRetirable(position - 1)) {
+      retirable++;
+    }
+    if (retirable > 0 && this.retirable.addAndGet(retirable) >= this.index.getNumLiveBlocks() / 4) {
+      this.retire();
+    }
+  }
+
+  /**
+   * Replaces the index by one without the blocks that are retirable now, unless a concurrent call just did. Blocks
+   * counted while the index is replaced may be counted again later, which only brings the next replacement forward.
+   */
+  private synchronized void retire() {
+    if (this.retirable.get() < this.index.getNumLiveBlocks() / 4) {
+      return;
+    }
+    this.retirable.set(0);
+    final boolean[] live = new boolean[this.completed.size()];
+    for (int i = 0; i < live.length; i++) {
+      live[i] = !this.isRetirable(i);
+    }
+    this.index = this.index.retain(live);
+  }
+
+  /**
+   * Whether matching the given block could no longer write anything, with sequential matches including its successor.
+   * Other blocks with the same sum that are not complete yet stay live, so its content is still matched for them, and
+   * matchers still recognize the content of retired blocks, see {@link BlockIndex#findRetired(BlockSum)}.
+   */
+  private boolean isRetirable(int position) {
+    return this.completed.get(position)
+        && (!this.seqMatches || position + 1 == this.completed.size() || this.completed.get(position + 1));
+  }
+
+  /**
+   * Hashes the output file as the contiguous prefix of written blocks grows, waiting for the block after the prefix to
+   * be written, until all blocks are hashed or the writer is closing. Runs in the background, so that only the part of
+   * the file not written in order yet is left to hash once the writer is closed.
+   *
+   * @return number of bytes hashed
+   */
+  private long hashWrittenPrefix() throws IOException, InterruptedException {
+    final ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+    final int numBlocks = this.written.size();
+    int hashed = 0;
+    while (hashed < numBlocks) {
+      int end;
+      synchronized (this.written) {
+        // published before checking the block, so that a writer completing it meanwhile sees it is awaited
+        this.awaited = hashed;
+        while ((end = this.written.nextClearBit(hashed)) == hashed && !this.closing) {
+          this.written.wait();
+        }
+        this.awaited = -1;
+      }
+      if (end == hashed) {
+        break;
       }
+      this.hash(buffer, this.offset(hashed), end == numBlocks ? this.length : this.offset(end));
+      hashed = end;
+    }
+    return Math.min(this.offset(hashed), this.length);
+  }
+
+  /**
+   * Updates the SHA-1 digest with the bytes of the output file between the given offsets
+   */
+  private void hash(ByteBuffer buffer, long from, long to) throws IOException {
+    for (long position = from; position < to;) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), to - position));
+      final int n = this.channel.read(buffer, position);
+      if (n < 0) {
+        throw new EOFException("Output file ended at " + position + " before " + to);
+      }
+      buffer.flip();
+      this.sha1Digest.update(buffer);
+      position += n;
+    }
+  }
+
+  /**
+   * Waits for the background hashing to stop and returns the number of bytes it hashed
+   */
+  private long stopHashing() throws IOException {
+    this.closing = true;
+    synchronized (this.written) {
+      this.written.notifyAll();
+    }
+    try {
+      return this.hashing.get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while hashing output file");
     }
   }
 
   @Override
   public void close() throws IOException {
     try {
-      this.channel.position(0); // reset channel to beginning to compute full SHA1
-      String calculatedSha1 = ZsyncUtil.computeSha1(this.channel);
+      // only the tail not hashed in the background yet is read again
+      this.hash(ByteBuffer.allocate(HASH_BUFFER_SIZE), this.stopHashing(), this.length);
+      String calculatedSha1 = ZsyncUtil.toHexString(ByteBuffer.wrap(this.sha1Digest.digest()));
       if (!this.sha1.equals(calculatedSha1)) {
         throw new ChecksumValidationIOException(this.sha1, calculatedSha1);
       }
@@ -223,4 +477,34 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
     }
   }
 
+  /**
+   * Writes to the output file from a given position on, independent of the file channel's position, so that blocks
+   * can be written concurrently
+   */
+  private static class PositionedChannel implements WritableByteChannel {
+
+    private final FileChannel channel;
+    private long position;
+
+    PositionedChannel(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      final int n = this.channel.write(src, this.position);
+      this.position += n;
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() {}
+  }
+
 }
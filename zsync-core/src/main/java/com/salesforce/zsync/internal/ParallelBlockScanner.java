@@ -0,0 +1,370 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.salesforce.zsync.internal.util.MappedRollingBuffer;
+import com.salesforce.zsync.internal.util.TransferListener;
+
+/**
+ * Scans a single input file for matching blocks by splitting it into segments that are scanned concurrently on a
+ * fork/join pool.
+ * <p>
+ * Each segment is scanned with its own matcher, starting in the initial state at the segment start and ending at the
+ * first offset past the segment end, so that consecutive segments overlap by one matcher block. Since the offsets a
+ * matcher visits depend on the matches found before, a segment's scan may initially diverge from the offsets the
+ * sequential scan visits. After all segments are scanned, the sequential scan is therefore reconstructed: starting from
+ * the end of each segment, the scan continues on the calling thread until it reaches an offset the next segment
+ * visited in an equivalent state, from where on both scans are identical. This way, every match found by a sequential
+ * scan is also found by the parallel scan. Matches found by segments before joining the sequential scan are verified
+ * like any other and copied as well.
+ */
+public class ParallelBlockScanner {
+
+  // segments smaller than this are not worth scheduling separately
+  static final long MIN_SEGMENT_SIZE = 1 << 20;
+
+  private final ForkJoinPool pool;
+  private final BlockMatcher prototype;
+  private final long minSegmentSize;
+  private final boolean map;
+
+  private long prefilterLookups;
+  private long prefilterHits;
+  private long prefilterFalsePositives;
+  private long bytesScanned;
+  private long strongChecksums;
+  private long checksumMisses;
+  private long blocksWritten;
+  private long duplicateBlocks;
+
+  /**
+   * @param pool pool to scan segments on
+   * @param prototype matcher to copy for each segment
+   */
+  public ParallelBlockScanner(ForkJoinPool pool, BlockMatcher prototype) {
+    this(pool, prototype, true);
+  }
+
+  /**
+   * @param pool pool to scan segments on
+   * @param prototype matcher to copy for each segment
+   * @param map whether to map the input file into memory or to read it through its channel, see
+   *        {@link MappedRollingBuffer}
+   */
+  public ParallelBlockScanner(ForkJoinPool pool, BlockMatcher prototype, boolean map) {
+    this(pool, prototype, MIN_SEGMENT_SIZE, map);
+  }
+
+  ParallelBlockScanner(ForkJoinPool pool, BlockMatcher prototype, long minSegmentSize, boolean map) {
+    this.pool = pool;
+    this.prototype = prototype;
+    this.minSegmentSize = Math.max(minSegmentSize, 2 * prototype.getMatcherBlockSize());
+    this.map = map;
+  }
+
+  public int getMatcherBlockSize() {
+    return this.prototype.getMatcherBlockSize();
+  }
+
+  /**
+   * Scans the given input file and writes all matching blocks to the target file. Bytes read within each segment are
+   * reported to the listener exactly once; listener calls are serialized on the target file. All segments stop
+   * scanning once the target file is complete.
+   *
+   * @param targetFile
+   * @param channel the input file, mapped into memory or read per segment
+   * @param size size of the input file
+   * @param padding number of zeros to append to the input file
+   * @param listener
+   * @throws IOException
+   */
+  public void scan(OutputFileWriter targetFile, FileChannel channel, long size, int padding, TransferListener listener)
+      throws IOException {
+    this.scan(targetFile, channel, size, padding, null, listener);
+  }
+
+  /**
+   * Scans the given input file like {@link #scan(OutputFileWriter, FileChannel, long, int, TransferListener)}, skipping
+   * the runs of blocks already matched by the given aligned scanner like the sequential scan does.
+   *
+   * @param aligned scanner that already scanned the input file, may be null
+   * @param listener notified of bytes read, may be null
+   */
+  public void scan(OutputFileWriter targetFile, FileChannel channel, long size, int padding,
+      AlignedBlockScanner aligned, TransferListener listener) throws IOException {
+    final int n = (int) Math.max(1, Math.min(this.pool.getParallelism(), size / this.minSegmentSize));
+    final Segment[] segments = new Segment[n];
+    for (int i = 0; i < n; i++) {
+      final long start = size * i / n;
+      final long end = i == n - 1 ? Long.MAX_VALUE : size * (i + 1) / n;
+      segments[i] = new Segment(targetFile, channel, size, padding, aligned, listener, start, end);
+    }
+
+    try {
+      this.pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+          ForkJoinTask.invokeAll(segments);
+        }
+      });
+
+      // follow the sequential scan across segment boundaries until it joins the scan of the next segment
+      Segment current = segments[0];
+      for (int i = 1; i < n && !current.done; i++) {
+        final Segment next = segments[i];
+        while (current.offset <= next.offset && !current.joins(next) && current.step(false));
+        if (!current.done && current.offset <= next.offset) {
+          current = next;
+        }
+      }
+      while (!current.done && current.step(false));
+    } catch (RuntimeException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+
+    for (Segment segment : segments) {
+      this.prefilterLookups += segment.matcher.getPrefilterLookups();
+      this.prefilterHits += segment.matcher.getPrefilterHits();
+      this.prefilterFalsePositives += segment.matcher.getPrefilterFalsePositives();
+      this.bytesScanned += segment.matcher.getBytesScanned();
+      this.strongChecksums += segment.matcher.getStrongChecksums();
+      this.checksumMisses += segment.matcher.getChecksumMisses();
+      this.blocksWritten += segment.matcher.getBlocksWritten();
+      this.duplicateBlocks += segment.matcher.getDuplicateBlocks();
+    }
+  }
+
+  public long getPrefilterLookups() {
+    return this.prefilterLookups;
+  }
+
+  public long getPrefilterHits() {
+    return this.prefilterHits;
+  }
+
+  public long getPrefilterFalsePositives() {
+    return this.prefilterFalsePositives;
+  }
+
+  public long getBytesScanned() {
+    return this.bytesScanned;
+  }
+
+  public long getStrongChecksums() {
+    return this.strongChecksums;
+  }
+
+  public long getChecksumMisses() {
+    return this.checksumMisses;
+  }
+
+  public long getBlocksWritten() {
+    return this.blocksWritten;
+  }
+
+  public long getDuplicateBlocks() {
+    return this.duplicateBlocks;
+  }
+
+  private final class Segment extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OutputFileWriter targetFile;
+    private final FileChannel channel;
+    private final long size;
+    private final int padding;
+    private final AlignedBlockScanner aligned;
+    private final TransferListener listener;
+    private final long start;
+    private final long end;
+
+    // scan state, valid once the segment has been computed
+    BlockMatcher matcher;
+    private MappedRollingBuffer buffer;
+    long offset;
+    // end of input file reached or target file complete
+    boolean done;
+
+    // steps that did not just miss: offset and bytes advanced, negated if the matcher carried over state afterwards
+    private long[] stepOffsets;
+    private long[] stepBytes;
+    private int numSteps;
+
+    Segment(OutputFileWriter targetFile, FileChannel channel, long size, int padding, AlignedBlockScanner aligned,
+        TransferListener listener, long start, long end) {
+      this.targetFile = targetFile;
+      this.channel = channel;
+      this.size = size;
+      this.padding = padding;
+      this.aligned = aligned;
+      this.listener = listener;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      this.matcher = ParallelBlockScanner.this.prototype.copy();
+      this.offset = this.start;
+      this.stepOffsets = new long[16];
+      this.stepBytes = new long[16];
+      try {
+        final TransferListener listener =
+            this.listener == null ? null : new SegmentListener(this.listener, this.targetFile, this.end - this.start);
+        this.buffer = new MappedRollingBuffer(this.channel, this.start, this.size, this.padding,
+            this.matcher.getMatcherBlockSize(), ParallelBlockScanner.this.map, listener);
+        while (this.offset < this.end && this.step(true));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * Matches at the current offset and advances.
+     *
+     * @param record whether to record the step for {@link #joins(Segment)}
+     * @return false if the end of the input file has been reached or the target file is complete
+     */
+    boolean step(boolean record) {
+      if (this.targetFile.isComplete()) {
+        this.done = true;
+        return false;
+      }
+      try {
+        if (this.aligned != null) {
+          // skipping matched runs depends on the offset only and leaves the matcher in its initial state
+          final long skipped = this.aligned.skipMatched(this.matcher, this.buffer);
+          if (skipped > 0) {
+            if (record) {
+              this.record(skipped, false);
+            }
+            this.offset += skipped;
+          }
+        }
+        if (record) {
+          // skipped offsets are plain misses, which are not recorded, and never reach the segment end
+          this.offset += this.matcher.skip(this.targetFile, this.buffer, (int) Math.max(0,
+              Math.min(Integer.MAX_VALUE, this.end - 1 - this.offset)));
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      final int bytes = this.matcher.match(this.targetFile, this.buffer);
+      final boolean carryOver = this.matcher.hasCarryOverState();
+      if (record && (bytes != 1 || carryOver)) {
+        this.record(bytes, carryOver);
+      }
+      try {
+        if (!this.buffer.advance(bytes)) {
+          this.done = true;
+          return false;
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      this.offset += bytes;
+      return true;
+    }
+
+    private void record(long bytes, boolean carryOver) {
+      if (this.numSteps == this.stepOffsets.length) {
+        this.stepOffsets = Arrays.copyOf(this.stepOffsets, 2 * this.numSteps);
+        this.stepBytes = Arrays.copyOf(this.stepBytes, 2 * this.numSteps);
+      }
+      this.stepOffsets[this.numSteps] = this.offset;
+      this.stepBytes[this.numSteps++] = carryOver ? -bytes : bytes;
+    }
+
+    /**
+     * Whether this segment's matcher is at an offset that the given segment visited in an equivalent state, i.e. both
+     * matchers behave like new ones at that offset.
+     */
+    boolean joins(Segment other) {
+      return !this.matcher.hasCarryOverState() && other.visitedWithoutCarryOver(this.offset);
+    }
+
+    private boolean visitedWithoutCarryOver(long position) {
+      if (position < this.start || position > this.offset) {
+        return false;
+      }
+      // find last recorded step before the given position: all steps after it advanced by a single byte
+      int i = Arrays.binarySearch(this.stepOffsets, 0, this.numSteps, position);
+      i = (i < 0 ? -i - 1 : i) - 1;
+      if (i < 0) {
+        return true;
+      }
+      final long bytes = this.stepBytes[i];
+      final long next = this.stepOffsets[i] + Math.abs(bytes);
+      return position > next || (position == next && bytes > 0);
+    }
+  }
+
+  /**
+   * Reports bytes mapped by a segment up to the segment end, serialized on the given lock.
+   */
+  private static final class SegmentListener implements TransferListener {
+
+    private final TransferListener listener;
+    private final Object lock;
+    private long remaining;
+
+    SegmentListener(TransferListener listener, Object lock, long length) {
+      this.listener = listener;
+      this.lock = lock;
+      this.remaining = length;
+    }
+
+    @Override
+    public void transferred(long bytes) {
+      final long reported = Math.min(bytes, this.remaining);
+      if (reported > 0) {
+        this.remaining -= reported;
+        synchronized (this.lock) {
+          this.listener.transferred(reported);
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      // the listener is closed by the caller
+    }
+  }
+
+}
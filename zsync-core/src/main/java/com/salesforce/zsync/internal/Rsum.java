@@ -25,6 +25,10 @@
  */
 package com.salesforce.zsync.internal;
 
+import static com.salesforce.zsync.internal.util.ZsyncUtil.computeRsum;
+
+import java.io.IOException;
+
 import com.salesforce.zsync.internal.util.ReadableByteBuffer;
 
 class Rsum {
@@ -42,12 +46,15 @@ class Rsum {
     return (short) (b < 0 ? b & 0xFF : b);
   }
 
-  private final int bitmask;
-  private final int blockShift;
+  final int bitmask;
+  final int blockShift;
 
   public short a;
   public short b;
 
+  // block copied from the buffer for computing sums from scratch
+  private byte[] scratch;
+
   Rsum(int length, int blockSize) {
     this.bitmask = (4 == length ? 0xffffffff : 3 == length ? 0xffffff : 2 == length ? 0xffff : 1 == length ? 0xff : 0);
     this.blockShift = computeBlockShift(blockSize);
@@ -65,6 +72,22 @@ class Rsum {
   }
 
   void init(ReadableByteBuffer buffer, int offset, int length) {
+    if (this.scratch == null || this.scratch.length < length) {
+      this.scratch = new byte[length];
+    }
+    // the range lies within the window, so it is fully available unless the buffer does not support bulk copies
+    final int n;
+    try {
+      n = buffer.copy(offset, this.scratch, 0, length);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (n == length) {
+      final int r = computeRsum(this.scratch, 0, length);
+      this.a = (short) (r >>> 16);
+      this.b = (short) r;
+      return;
+    }
     this.a = 0;
     this.b = 0;
     for (int i = 0, l = length; i < length; i++, l--) {
@@ -25,18 +25,16 @@
  */
 package com.salesforce.zsync.internal;
 
-import static com.salesforce.zsync.internal.BlockSum.getRsum;
 import static com.salesforce.zsync.internal.SingleBlockMatcher.State.INIT;
 import static com.salesforce.zsync.internal.SingleBlockMatcher.State.MATCHED;
 import static com.salesforce.zsync.internal.SingleBlockMatcher.State.MISSED;
-import static com.salesforce.zsync.internal.util.ZsyncUtil.newMD4;
 
-import java.util.List;
-import java.util.Set;
+import java.io.IOException;
 
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
+import com.salesforce.zsync.internal.util.BitHash;
+import com.salesforce.zsync.internal.util.IntHashSet;
 import com.salesforce.zsync.internal.util.ReadableByteBuffer;
+import com.salesforce.zsync.internal.util.RollingReadableByteBuffer;
 
 public class SingleBlockMatcher extends BlockMatcher {
 
@@ -45,18 +43,53 @@ public class SingleBlockMatcher extends BlockMatcher {
   }
 
   private final int blockSize;
-  private final Set<Integer> rsumHashSet;
+  private final int rsumBytes;
+  private final int checksumBytes;
+  private final BitHash rsumBitHash;
+  private final IntHashSet rsumHashSet;
 
   private State state;
   private MutableBlockSum blockSum;
   private byte firstByte;
+  // rolling sums, leaving byte and prefilter hits before each batched candidate
+  private final int[] candidateStates = new int[4 * BATCH_SIZE];
 
   public SingleBlockMatcher(ControlFile controlFile) {
     final Header header = controlFile.getHeader();
     this.blockSize = header.getBlocksize();
-    this.rsumHashSet = ImmutableSet.copyOf(Iterables.transform(controlFile.getBlockSums(), getRsum));
+    this.rsumBytes = header.getRsumBytes();
+    this.checksumBytes = header.getChecksumBytes();
+    final BlockIndex index = controlFile.getIndex();
+    this.rsumBitHash = computeRsumBitHash(index);
+    this.rsumHashSet = computeRsumHashSet(index);
     this.state = INIT;
-    this.blockSum = new MutableBlockSum(newMD4(), this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
+    this.blockSum = new MutableBlockSum(this.digest, this.blockSize, this.rsumBytes, this.checksumBytes);
+  }
+
+  private SingleBlockMatcher(SingleBlockMatcher other) {
+    this.blockSize = other.blockSize;
+    this.rsumBytes = other.rsumBytes;
+    this.checksumBytes = other.checksumBytes;
+    this.rsumBitHash = other.rsumBitHash;
+    this.rsumHashSet = other.rsumHashSet;
+    this.state = INIT;
+    this.blockSum = new MutableBlockSum(this.digest, this.blockSize, this.rsumBytes, this.checksumBytes);
+  }
+
+  static BitHash computeRsumBitHash(BlockIndex index) {
+    final BitHash bitHash = new BitHash(index.getNumBlocks());
+    for (int p = 0; p < index.getNumBlocks(); p++) {
+      bitHash.add(index.getRsum(p));
+    }
+    return bitHash;
+  }
+
+  static IntHashSet computeRsumHashSet(BlockIndex index) {
+    final IntHashSet set = new IntHashSet(index.getNumBlocks());
+    for (int p = 0; p < index.getNumBlocks(); p++) {
+      set.add(index.getRsum(p));
+    }
+    return set;
   }
 
   @Override
@@ -64,8 +97,27 @@ public class SingleBlockMatcher extends BlockMatcher {
     return this.blockSize;
   }
 
+  @Override
+  public SingleBlockMatcher copy() {
+    return new SingleBlockMatcher(this);
+  }
+
+  @Override
+  public void reset() {
+    this.state = INIT;
+    this.checksumResolved = false;
+  }
+
+  @Override
+  public boolean hasCarryOverState() {
+    // a rolled rsum is equal to one computed from scratch, so the matcher never depends on earlier calls
+    return false;
+  }
+
   @Override
   public int match(OutputFileWriter targetFile, ReadableByteBuffer buffer) {
+    final boolean resolved = this.checksumResolved;
+    this.checksumResolved = false;
     switch (this.state) {
       case INIT:
         this.blockSum.rsum.init(buffer);
@@ -81,22 +133,140 @@ public class SingleBlockMatcher extends BlockMatcher {
     }
 
     final int r = this.blockSum.rsum.toInt();
-    // cheap negative check followed by more expensive positive check
-    if (this.rsumHashSet.contains(r)) {
-      // only compute strong checksum if weak matched some block
-      this.blockSum.checksum.setChecksum(buffer);
-      final List<Integer> matches = targetFile.getPositions(this.blockSum);
-      if (!matches.isEmpty()) {
-        for (Integer position : matches) {
-          targetFile.writeBlock(position, buffer);
-        }
+    // cheap negative checks followed by more expensive positive check
+    if (this.isCandidate(r)) {
+      // only compute strong checksum if weak matched some block, and if skipping did not compute it already
+      if (!resolved) {
+        this.blockSum.checksum.setChecksum(buffer);
+        this.strongChecksums++;
+      }
+      final BlockIndex index = targetFile.getIndex();
+      int slot = index.find(this.blockSum);
+      if (slot != -1) {
+        do {
+          this.writeBlock(targetFile, index.getPosition(slot), buffer, 0);
+        } while ((slot = index.next(slot)) != -1);
+        this.state = MATCHED;
+        this.bytesScanned += this.blockSize;
+        return this.blockSize;
+      }
+      if (index.findRetired(this.blockSum) != -1) {
+        // the block is complete already, but skipping it keeps a seed holding completed content from being rolled
+        // over byte by byte
+        this.duplicateBlocks++;
         this.state = MATCHED;
+        this.bytesScanned += this.blockSize;
         return this.blockSize;
       }
+      this.checksumMisses++;
     }
     this.state = MISSED;
     this.firstByte = buffer.get(0);
+    this.bytesScanned++;
     return 1;
   }
 
+  @Override
+  public int skip(OutputFileWriter targetFile, RollingReadableByteBuffer buffer, int max) throws IOException {
+    if (this.state != MISSED || max <= 0) {
+      return 0;
+    }
+    final int o = this.chunkOffset(buffer);
+    if (o < 0) {
+      return 0;
+    }
+    final byte[] c = this.chunk;
+    final int end = o + Math.min(max, this.chunkLength - o - this.blockSize);
+    final int last = this.blockSize - 1;
+    final Rsum rsum = this.blockSum.rsum;
+    final int shift = rsum.blockShift;
+    final int bitmask = rsum.bitmask;
+    final BitHash bitHash = this.rsumBitHash;
+    final int[] offsets = this.candidateOffsets;
+    final int[] states = this.candidateStates;
+    // rolling sum of the previous window and the byte leaving it, as in the MISSED case of match
+    int a = rsum.a;
+    int b = rsum.b;
+    int out = this.firstByte & 0xff;
+    int hits = 0;
+    // candidates collected but not resolved yet, candidates resolved as misses and the first one that is not
+    int n = 0;
+    int misses = 0;
+    int stop = -1;
+    int i = o;
+    for (; i < end; i++) {
+      final int na = a + (c[i + last] & 0xff) - out;
+      final int nb = b + na - (out << shift);
+      final int r = ((na << 16) | (nb & 0xffff)) & bitmask;
+      if (bitHash.mightContain(r)) {
+        if (this.rsumHashSet.contains(r)) {
+          // only batch candidates close together, since a match makes the lookahead useless
+          if (n > 0 && i - offsets[0] >= this.blockSize) {
+            if ((stop = this.resolveCandidates(targetFile, n, this.blockSize, this.checksumBytes)) >= 0) {
+              break;
+            }
+            misses += n;
+            n = 0;
+          }
+          offsets[n] = i;
+          this.candidateRsums[n] = r;
+          states[4 * n] = a;
+          states[4 * n + 1] = b;
+          states[4 * n + 2] = out;
+          states[4 * n + 3] = hits;
+          if (++n == BATCH_SIZE) {
+            if ((stop = this.resolveCandidates(targetFile, n, this.blockSize, this.checksumBytes)) >= 0) {
+              break;
+            }
+            misses += n;
+            n = 0;
+          }
+        } else {
+          hits++;
+        }
+      }
+      a = na;
+      b = nb;
+      out = c[i] & 0xff;
+    }
+    if (stop < 0 && n > 0) {
+      stop = this.resolveCandidates(targetFile, n, this.blockSize, this.checksumBytes);
+      misses += stop < 0 ? n : 0;
+    }
+    if (stop >= 0) {
+      // continue matching at the candidate from the state before it
+      misses += stop;
+      i = offsets[stop];
+      a = states[4 * stop];
+      b = states[4 * stop + 1];
+      out = states[4 * stop + 2];
+      hits = states[4 * stop + 3];
+      this.setResolvedChecksum(this.blockSum.checksum, stop);
+    }
+    rsum.a = (short) a;
+    rsum.b = (short) b;
+    this.firstByte = (byte) out;
+    final int skipped = i - o;
+    this.prefilterLookups += skipped;
+    this.prefilterHits += hits + misses;
+    this.prefilterFalsePositives += hits;
+    this.bytesScanned += skipped;
+    this.checksumMisses += misses;
+    advance(buffer, skipped);
+    return skipped;
+  }
+
+  private boolean isCandidate(int r) {
+    this.prefilterLookups++;
+    if (!this.rsumBitHash.mightContain(r)) {
+      return false;
+    }
+    this.prefilterHits++;
+    if (!this.rsumHashSet.contains(r)) {
+      this.prefilterFalsePositives++;
+      return false;
+    }
+    return true;
+  }
+
 }
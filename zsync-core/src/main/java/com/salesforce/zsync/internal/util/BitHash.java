@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+/**
+ * Compact probabilistic set membership filter, similar to the bithash used by the C implementation of zsync: each key
+ * sets a single bit in a power-of-two sized bit array. A negative answer is definite, a positive answer may be a false
+ * positive. With the default of 16 bits per expected key the bit array is small enough to stay cache resident for
+ * typical block counts and rejects roughly 94% of absent keys with a single bit test.
+ */
+public class BitHash {
+
+  static final int BITS_PER_KEY = 16;
+
+  private final long[] words;
+  private final int mask;
+
+  /**
+   * Creates a filter sized for the given number of keys
+   *
+   * @param expectedSize number of keys the filter will hold, must not be negative
+   */
+  public BitHash(int expectedSize) {
+    this(expectedSize, BITS_PER_KEY);
+  }
+
+  BitHash(int expectedSize, int bitsPerKey) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("expected size must not be negative");
+    }
+    final long minBits = Math.max(64L, (long) expectedSize * bitsPerKey);
+    final long bits = Math.min(1L << 31, Long.highestOneBit(minBits - 1) << 1);
+    this.words = new long[(int) (bits >>> 6)];
+    this.mask = (int) (bits - 1);
+  }
+
+  public void add(int key) {
+    this.set(IntHashSet.hash(key));
+  }
+
+  public void add(long key) {
+    this.set(LongHashSet.hash(key));
+  }
+
+  public boolean mightContain(int key) {
+    return this.isSet(IntHashSet.hash(key));
+  }
+
+  public boolean mightContain(long key) {
+    return this.isSet(LongHashSet.hash(key));
+  }
+
+  /**
+   * Number of bits in the filter
+   *
+   * @return
+   */
+  public long size() {
+    return (long) this.mask + 1;
+  }
+
+  private void set(int hash) {
+    final int bit = hash & this.mask;
+    this.words[bit >>> 6] |= 1L << bit;
+  }
+
+  private boolean isSet(int hash) {
+    final int bit = hash & this.mask;
+    return (this.words[bit >>> 6] & (1L << bit)) != 0;
+  }
+
+}
@@ -28,8 +28,6 @@ package com.salesforce.zsync.internal.util;
 import static com.google.common.base.Joiner.on;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.ImmutableList.copyOf;
-import static com.google.common.collect.Iterables.limit;
-import static java.lang.Math.min;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static java.net.HttpURLConnection.HTTP_PROXY_AUTH;
@@ -48,6 +46,7 @@ import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -123,7 +122,7 @@ public class HttpClient {
     void receive(ContentRange range, InputStream in) throws IOException;
   }
 
-  private static final int MAXIMUM_RANGES_PER_HTTP_REQUEST = 100;
+  public static final int MAXIMUM_RANGES_PER_HTTP_REQUEST = 100;
 
   private final OkHttpClient okHttpClient;
   private final Set<String> basicChallengeReceived;
@@ -201,15 +200,40 @@ public class HttpClient {
    */
   public void partialGet(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
       RangeReceiver receiver, RangeTransferListener listener) throws IOException, HttpError {
-    final Set<ContentRange> remaining = new LinkedHashSet<>(ranges);
-    while (!remaining.isEmpty()) {
-      final List<ContentRange> next = copyOf(limit(remaining, min(remaining.size(), MAXIMUM_RANGES_PER_HTTP_REQUEST)));
+    this.partialGet(uri, ranges.iterator(), credentials, receiver, listener);
+  }
+
+  /**
+   * Retrieves the requested ranges for the resource referred to by the given uri, taking ranges from the iterator only
+   * as they are requested, so that at most {@link #MAXIMUM_RANGES_PER_HTTP_REQUEST} are held at a time.
+   *
+   * @param uri
+   * @param ranges
+   * @param receiver
+   * @param listener
+   * @throws IOException
+   * @throws HttpError
+   */
+  public void partialGet(URI uri, Iterator<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, RangeTransferListener listener) throws IOException, HttpError {
+    final Set<ContentRange> remaining = new LinkedHashSet<>();
+    while (true) {
+      // top up ranges the server did not return with the next ones
+      while (remaining.size() < MAXIMUM_RANGES_PER_HTTP_REQUEST && ranges.hasNext()) {
+        remaining.add(ranges.next());
+      }
+      if (remaining.isEmpty()) {
+        return;
+      }
+      final List<ContentRange> next = copyOf(remaining);
       final HttpTransferListener requestListener = listener.newTransfer(next);
       final Response response = executeWithAuthRetry(uri, credentials, requestListener, next);
       final int code = response.code();
       // tolerate case that server does not support range requests
       if (code == HTTP_OK) {
-        receiver.receive(new ContentRange(0, response.body().contentLength()), inputStream(response, requestListener));
+        try (InputStream in = inputStream(response, requestListener)) {
+          receiver.receive(new ContentRange(0, response.body().contentLength()), in);
+        }
         return;
       }
       // otherwise only accept partial content response
@@ -292,8 +316,9 @@ public class HttpClient {
       throw new IOException("Received range " + range + " not one of requested " + remaining);
     }
 
-    InputStream in = inputStream(response, listener);
-    receiver.receive(range, in);
+    try (InputStream in = inputStream(response, listener)) {
+      receiver.receive(range, in);
+    }
   }
 
   static void handleMultiPartBody(Response response, RangeReceiver receiver, final Set<ContentRange> remaining,
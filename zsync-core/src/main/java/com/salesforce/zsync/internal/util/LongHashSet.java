@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+/**
+ * Minimal open-addressing hash set of primitive longs. See {@link IntHashSet}.
+ */
+public class LongHashSet {
+
+  // 0 marks a free slot, so membership of 0 itself is tracked separately
+  private final long[] keys;
+  private final int mask;
+  private boolean containsZero;
+  private int size;
+
+  /**
+   * Creates a set that can hold the given number of elements at a load factor of at most one half
+   *
+   * @param expectedSize number of elements the set will hold, must not be negative
+   */
+  public LongHashSet(int expectedSize) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("expected size must not be negative");
+    }
+    this.keys = new long[IntHashSet.capacity(expectedSize)];
+    this.mask = this.keys.length - 1;
+  }
+
+  /**
+   * Adds the given key to the set. Adding more than the expected number of elements given at construction time results
+   * in an IllegalStateException.
+   *
+   * @param key
+   * @return true if the key was not yet contained in the set
+   */
+  public boolean add(long key) {
+    if (key == 0) {
+      if (this.containsZero) {
+        return false;
+      }
+      this.size++;
+      return this.containsZero = true;
+    }
+    int i = hash(key) & this.mask;
+    long k;
+    while ((k = this.keys[i]) != 0) {
+      if (k == key) {
+        return false;
+      }
+      i = (i + 1) & this.mask;
+    }
+    if (this.size == this.keys.length / 2) {
+      throw new IllegalStateException("Set capacity exceeded");
+    }
+    this.keys[i] = key;
+    this.size++;
+    return true;
+  }
+
+  public boolean contains(long key) {
+    if (key == 0) {
+      return this.containsZero;
+    }
+    int i = hash(key) & this.mask;
+    long k;
+    while ((k = this.keys[i]) != 0) {
+      if (k == key) {
+        return true;
+      }
+      i = (i + 1) & this.mask;
+    }
+    return false;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  static int hash(long key) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+}
@@ -0,0 +1,465 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * MD4 message digest (RFC 1320) that hashes a complete range of bytes per call and writes a possibly truncated digest
+ * to a given array. Unlike a {@link java.security.MessageDigest}, it does not allocate per call or per 64 byte block,
+ * so it is suited for computing the strong checksums of many small blocks. Instances are not thread safe.
+ */
+public final class MD4Digest {
+
+  public static final int DIGEST_LENGTH = 16;
+
+  /**
+   * Number of ranges hashed together by {@link #digest(byte[], int[], int, int, byte[], int)}
+   */
+  public static final int LANES = 2;
+
+  private static final int BLOCK_LENGTH = 64;
+
+  // chaining variables
+  private int a;
+  private int b;
+  private int c;
+  private int d;
+
+  // last one or two 64 byte blocks of the message including padding
+  private final byte[] tail = new byte[2 * BLOCK_LENGTH];
+  // chaining variables and tails of the ranges hashed together
+  private final int[] lanes = new int[4 * LANES];
+  private final byte[] laneTails = new byte[LANES * 2 * BLOCK_LENGTH];
+  // input copied from a buffer that does not expose its bytes
+  private byte[] scratch;
+
+  /**
+   * Computes the digest of the given range and writes its leading bytes to the output array.
+   *
+   * @param input
+   * @param offset offset of the first byte to hash
+   * @param length number of bytes to hash
+   * @param output
+   * @param outputOffset
+   * @param outputLength number of leading digest bytes to write, at most {@link #DIGEST_LENGTH}
+   * @return number of bytes written
+   */
+  public int digest(byte[] input, int offset, int length, byte[] output, int outputOffset, int outputLength) {
+    if (offset < 0 || length < 0 || offset + length > input.length) {
+      throw new IndexOutOfBoundsException("Invalid offset " + offset + " or length " + length);
+    }
+    if (outputLength < 0 || outputLength > DIGEST_LENGTH || outputOffset < 0
+        || outputOffset + outputLength > output.length) {
+      throw new IndexOutOfBoundsException("Invalid output offset " + outputOffset + " or length " + outputLength);
+    }
+    this.a = 0x67452301;
+    this.b = 0xefcdab89;
+    this.c = 0x98badcfe;
+    this.d = 0x10325476;
+
+    final int end = offset + length;
+    int i = offset;
+    for (; end - i >= BLOCK_LENGTH; i += BLOCK_LENGTH) {
+      this.process(input, i);
+    }
+
+    // pad with a single one bit, zeros and the message length in bits
+    final int remaining = end - i;
+    final int tailLength = remaining < BLOCK_LENGTH - 8 ? BLOCK_LENGTH : 2 * BLOCK_LENGTH;
+    System.arraycopy(input, i, this.tail, 0, remaining);
+    this.tail[remaining] = (byte) 0x80;
+    Arrays.fill(this.tail, remaining + 1, tailLength - 8, (byte) 0);
+    final long bits = (long) length << 3;
+    for (int j = 0; j < 8; j++) {
+      this.tail[tailLength - 8 + j] = (byte) (bits >>> (j << 3));
+    }
+    this.process(this.tail, 0);
+    if (tailLength > BLOCK_LENGTH) {
+      this.process(this.tail, BLOCK_LENGTH);
+    }
+
+    for (int j = 0; j < outputLength; j++) {
+      final int word = j < 4 ? this.a : j < 8 ? this.b : j < 12 ? this.c : this.d;
+      output[outputOffset + j] = (byte) (word >>> ((j & 3) << 3));
+    }
+    return outputLength;
+  }
+
+  /**
+   * Computes the digests of several ranges of the same length and writes their leading bytes to consecutive regions of
+   * the output array. Ranges are hashed {@link #LANES} at a time with their steps interleaved, so that the processor
+   * overlaps the otherwise strictly sequential operations of each digest.
+   *
+   * @param input
+   * @param offsets offsets of the first byte of each range
+   * @param count number of ranges
+   * @param length number of bytes in each range
+   * @param output
+   * @param outputLength number of leading digest bytes to write per range, at most {@link #DIGEST_LENGTH}
+   */
+  public void digest(byte[] input, int[] offsets, int count, int length, byte[] output, int outputLength) {
+    this.digest(input, offsets, 0, count, length, output, outputLength);
+  }
+
+  /**
+   * Computes the digests of the ranges with the given indexes from first up to count like
+   * {@link #digest(byte[], int[], int, int, byte[], int)}, writing the digest of range k to the k-th region of the
+   * output array.
+   */
+  public void digest(byte[] input, int[] offsets, int first, int count, int length, byte[] output, int outputLength) {
+    if (first < 0 || count < first || count > offsets.length || outputLength < 0 || outputLength > DIGEST_LENGTH
+        || count * outputLength > output.length) {
+      throw new IndexOutOfBoundsException("Invalid range " + first + " to " + count + " or output length "
+          + outputLength);
+    }
+    int k = first;
+    for (; count - k >= LANES; k += LANES) {
+      for (int l = 0; l < LANES; l++) {
+        final int offset = offsets[k + l];
+        if (offset < 0 || length < 0 || offset + length > input.length) {
+          throw new IndexOutOfBoundsException("Invalid offset " + offset + " or length " + length);
+        }
+      }
+      this.digestLanes(input, offsets, k, length, output, k * outputLength, outputLength);
+    }
+    for (; k < count; k++) {
+      this.digest(input, offsets[k], length, output, k * outputLength, outputLength);
+    }
+  }
+
+  /**
+   * Computes the digest of the given range of the buffer's current window, which is first copied in bulk.
+   *
+   * @see #digest(byte[], int, int, byte[], int, int)
+   */
+  public int digest(ReadableByteBuffer buffer, int offset, int length, byte[] output, int outputOffset,
+      int outputLength) throws IOException {
+    if (this.scratch == null || this.scratch.length < length) {
+      this.scratch = new byte[length];
+    }
+    final int copied = buffer.copy(offset, this.scratch, 0, length);
+    for (int i = copied; i < length; i++) {
+      this.scratch[i] = buffer.get(offset + i);
+    }
+    return this.digest(this.scratch, 0, length, output, outputOffset, outputLength);
+  }
+
+  private void process(byte[] in, int offset) {
+    final int x0 = getInt(in, offset);
+    final int x1 = getInt(in, offset + 4);
+    final int x2 = getInt(in, offset + 8);
+    final int x3 = getInt(in, offset + 12);
+    final int x4 = getInt(in, offset + 16);
+    final int x5 = getInt(in, offset + 20);
+    final int x6 = getInt(in, offset + 24);
+    final int x7 = getInt(in, offset + 28);
+    final int x8 = getInt(in, offset + 32);
+    final int x9 = getInt(in, offset + 36);
+    final int x10 = getInt(in, offset + 40);
+    final int x11 = getInt(in, offset + 44);
+    final int x12 = getInt(in, offset + 48);
+    final int x13 = getInt(in, offset + 52);
+    final int x14 = getInt(in, offset + 56);
+    final int x15 = getInt(in, offset + 60);
+
+    int a = this.a;
+    int b = this.b;
+    int c = this.c;
+    int d = this.d;
+
+    // round 1
+    a = round1(a, b, c, d, x0, 3);
+    d = round1(d, a, b, c, x1, 7);
+    c = round1(c, d, a, b, x2, 11);
+    b = round1(b, c, d, a, x3, 19);
+    a = round1(a, b, c, d, x4, 3);
+    d = round1(d, a, b, c, x5, 7);
+    c = round1(c, d, a, b, x6, 11);
+    b = round1(b, c, d, a, x7, 19);
+    a = round1(a, b, c, d, x8, 3);
+    d = round1(d, a, b, c, x9, 7);
+    c = round1(c, d, a, b, x10, 11);
+    b = round1(b, c, d, a, x11, 19);
+    a = round1(a, b, c, d, x12, 3);
+    d = round1(d, a, b, c, x13, 7);
+    c = round1(c, d, a, b, x14, 11);
+    b = round1(b, c, d, a, x15, 19);
+    // round 2
+    a = round2(a, b, c, d, x0, 3);
+    d = round2(d, a, b, c, x4, 5);
+    c = round2(c, d, a, b, x8, 9);
+    b = round2(b, c, d, a, x12, 13);
+    a = round2(a, b, c, d, x1, 3);
+    d = round2(d, a, b, c, x5, 5);
+    c = round2(c, d, a, b, x9, 9);
+    b = round2(b, c, d, a, x13, 13);
+    a = round2(a, b, c, d, x2, 3);
+    d = round2(d, a, b, c, x6, 5);
+    c = round2(c, d, a, b, x10, 9);
+    b = round2(b, c, d, a, x14, 13);
+    a = round2(a, b, c, d, x3, 3);
+    d = round2(d, a, b, c, x7, 5);
+    c = round2(c, d, a, b, x11, 9);
+    b = round2(b, c, d, a, x15, 13);
+    // round 3
+    a = round3(a, b, c, d, x0, 3);
+    d = round3(d, a, b, c, x8, 9);
+    c = round3(c, d, a, b, x4, 11);
+    b = round3(b, c, d, a, x12, 15);
+    a = round3(a, b, c, d, x2, 3);
+    d = round3(d, a, b, c, x10, 9);
+    c = round3(c, d, a, b, x6, 11);
+    b = round3(b, c, d, a, x14, 15);
+    a = round3(a, b, c, d, x1, 3);
+    d = round3(d, a, b, c, x9, 9);
+    c = round3(c, d, a, b, x5, 11);
+    b = round3(b, c, d, a, x13, 15);
+    a = round3(a, b, c, d, x3, 3);
+    d = round3(d, a, b, c, x11, 9);
+    c = round3(c, d, a, b, x7, 11);
+    b = round3(b, c, d, a, x15, 15);
+
+    this.a += a;
+    this.b += b;
+    this.c += c;
+    this.d += d;
+  }
+
+  private void digestLanes(byte[] input, int[] offsets, int k, int length, byte[] output, int outputOffset,
+      int outputLength) {
+    for (int l = 0; l < LANES; l++) {
+      this.lanes[4 * l] = 0x67452301;
+      this.lanes[4 * l + 1] = 0xefcdab89;
+      this.lanes[4 * l + 2] = 0x98badcfe;
+      this.lanes[4 * l + 3] = 0x10325476;
+    }
+    final int o0 = offsets[k];
+    final int o1 = offsets[k + 1];
+    int i = 0;
+    for (; length - i >= BLOCK_LENGTH; i += BLOCK_LENGTH) {
+      this.processLanes(input, o0 + i, input, o1 + i);
+    }
+
+    // all ranges have the same length, hence the same padding
+    final int remaining = length - i;
+    final int tailLength = remaining < BLOCK_LENGTH - 8 ? BLOCK_LENGTH : 2 * BLOCK_LENGTH;
+    for (int l = 0; l < LANES; l++) {
+      final int t = l * 2 * BLOCK_LENGTH;
+      System.arraycopy(input, offsets[k + l] + i, this.laneTails, t, remaining);
+      this.laneTails[t + remaining] = (byte) 0x80;
+      Arrays.fill(this.laneTails, t + remaining + 1, t + tailLength - 8, (byte) 0);
+      final long bits = (long) length << 3;
+      for (int j = 0; j < 8; j++) {
+        this.laneTails[t + tailLength - 8 + j] = (byte) (bits >>> (j << 3));
+      }
+    }
+    final byte[] t = this.laneTails;
+    for (int j = 0; j < tailLength; j += BLOCK_LENGTH) {
+      this.processLanes(t, j, t, 2 * BLOCK_LENGTH + j);
+    }
+
+    for (int l = 0; l < LANES; l++) {
+      final int o = outputOffset + l * outputLength;
+      for (int j = 0; j < outputLength; j++) {
+        output[o + j] = (byte) (this.lanes[4 * l + (j >> 2)] >>> ((j & 3) << 3));
+      }
+    }
+  }
+
+  private void processLanes(byte[] in0, int offset0, byte[] in1, int offset1) {
+    final int x0_0 = getInt(in0, offset0);
+    final int x0_1 = getInt(in0, offset0 + 4);
+    final int x0_2 = getInt(in0, offset0 + 8);
+    final int x0_3 = getInt(in0, offset0 + 12);
+    final int x0_4 = getInt(in0, offset0 + 16);
+    final int x0_5 = getInt(in0, offset0 + 20);
+    final int x0_6 = getInt(in0, offset0 + 24);
+    final int x0_7 = getInt(in0, offset0 + 28);
+    final int x0_8 = getInt(in0, offset0 + 32);
+    final int x0_9 = getInt(in0, offset0 + 36);
+    final int x0_10 = getInt(in0, offset0 + 40);
+    final int x0_11 = getInt(in0, offset0 + 44);
+    final int x0_12 = getInt(in0, offset0 + 48);
+    final int x0_13 = getInt(in0, offset0 + 52);
+    final int x0_14 = getInt(in0, offset0 + 56);
+    final int x0_15 = getInt(in0, offset0 + 60);
+    final int x1_0 = getInt(in1, offset1);
+    final int x1_1 = getInt(in1, offset1 + 4);
+    final int x1_2 = getInt(in1, offset1 + 8);
+    final int x1_3 = getInt(in1, offset1 + 12);
+    final int x1_4 = getInt(in1, offset1 + 16);
+    final int x1_5 = getInt(in1, offset1 + 20);
+    final int x1_6 = getInt(in1, offset1 + 24);
+    final int x1_7 = getInt(in1, offset1 + 28);
+    final int x1_8 = getInt(in1, offset1 + 32);
+    final int x1_9 = getInt(in1, offset1 + 36);
+    final int x1_10 = getInt(in1, offset1 + 40);
+    final int x1_11 = getInt(in1, offset1 + 44);
+    final int x1_12 = getInt(in1, offset1 + 48);
+    final int x1_13 = getInt(in1, offset1 + 52);
+    final int x1_14 = getInt(in1, offset1 + 56);
+    final int x1_15 = getInt(in1, offset1 + 60);
+
+    int a0 = this.lanes[0];
+    int b0 = this.lanes[1];
+    int c0 = this.lanes[2];
+    int d0 = this.lanes[3];
+    int a1 = this.lanes[4];
+    int b1 = this.lanes[5];
+    int c1 = this.lanes[6];
+    int d1 = this.lanes[7];
+
+    // round 1, one step for each lane at a time
+    a0 = round1(a0, b0, c0, d0, x0_0, 3);
+    a1 = round1(a1, b1, c1, d1, x1_0, 3);
+    d0 = round1(d0, a0, b0, c0, x0_1, 7);
+    d1 = round1(d1, a1, b1, c1, x1_1, 7);
+    c0 = round1(c0, d0, a0, b0, x0_2, 11);
+    c1 = round1(c1, d1, a1, b1, x1_2, 11);
+    b0 = round1(b0, c0, d0, a0, x0_3, 19);
+    b1 = round1(b1, c1, d1, a1, x1_3, 19);
+    a0 = round1(a0, b0, c0, d0, x0_4, 3);
+    a1 = round1(a1, b1, c1, d1, x1_4, 3);
+    d0 = round1(d0, a0, b0, c0, x0_5, 7);
+    d1 = round1(d1, a1, b1, c1, x1_5, 7);
+    c0 = round1(c0, d0, a0, b0, x0_6, 11);
+    c1 = round1(c1, d1, a1, b1, x1_6, 11);
+    b0 = round1(b0, c0, d0, a0, x0_7, 19);
+    b1 = round1(b1, c1, d1, a1, x1_7, 19);
+    a0 = round1(a0, b0, c0, d0, x0_8, 3);
+    a1 = round1(a1, b1, c1, d1, x1_8, 3);
+    d0 = round1(d0, a0, b0, c0, x0_9, 7);
+    d1 = round1(d1, a1, b1, c1, x1_9, 7);
+    c0 = round1(c0, d0, a0, b0, x0_10, 11);
+    c1 = round1(c1, d1, a1, b1, x1_10, 11);
+    b0 = round1(b0, c0, d0, a0, x0_11, 19);
+    b1 = round1(b1, c1, d1, a1, x1_11, 19);
+    a0 = round1(a0, b0, c0, d0, x0_12, 3);
+    a1 = round1(a1, b1, c1, d1, x1_12, 3);
+    d0 = round1(d0, a0, b0, c0, x0_13, 7);
+    d1 = round1(d1, a1, b1, c1, x1_13, 7);
+    c0 = round1(c0, d0, a0, b0, x0_14, 11);
+    c1 = round1(c1, d1, a1, b1, x1_14, 11);
+    b0 = round1(b0, c0, d0, a0, x0_15, 19);
+    b1 = round1(b1, c1, d1, a1, x1_15, 19);
+
+    // round 2, one step for each lane at a time
+    a0 = round2(a0, b0, c0, d0, x0_0, 3);
+    a1 = round2(a1, b1, c1, d1, x1_0, 3);
+    d0 = round2(d0, a0, b0, c0, x0_4, 5);
+    d1 = round2(d1, a1, b1, c1, x1_4, 5);
+    c0 = round2(c0, d0, a0, b0, x0_8, 9);
+    c1 = round2(c1, d1, a1, b1, x1_8, 9);
+    b0 = round2(b0, c0, d0, a0, x0_12, 13);
+    b1 = round2(b1, c1, d1, a1, x1_12, 13);
+    a0 = round2(a0, b0, c0, d0, x0_1, 3);
+    a1 = round2(a1, b1, c1, d1, x1_1, 3);
+    d0 = round2(d0, a0, b0, c0, x0_5, 5);
+    d1 = round2(d1, a1, b1, c1, x1_5, 5);
+    c0 = round2(c0, d0, a0, b0, x0_9, 9);
+    c1 = round2(c1, d1, a1, b1, x1_9, 9);
+    b0 = round2(b0, c0, d0, a0, x0_13, 13);
+    b1 = round2(b1, c1, d1, a1, x1_13, 13);
+    a0 = round2(a0, b0, c0, d0, x0_2, 3);
+    a1 = round2(a1, b1, c1, d1, x1_2, 3);
+    d0 = round2(d0, a0, b0, c0, x0_6, 5);
+    d1 = round2(d1, a1, b1, c1, x1_6, 5);
+    c0 = round2(c0, d0, a0, b0, x0_10, 9);
+    c1 = round2(c1, d1, a1, b1, x1_10, 9);
+    b0 = round2(b0, c0, d0, a0, x0_14, 13);
+    b1 = round2(b1, c1, d1, a1, x1_14, 13);
+    a0 = round2(a0, b0, c0, d0, x0_3, 3);
+    a1 = round2(a1, b1, c1, d1, x1_3, 3);
+    d0 = round2(d0, a0, b0, c0, x0_7, 5);
+    d1 = round2(d1, a1, b1, c1, x1_7, 5);
+    c0 = round2(c0, d0, a0, b0, x0_11, 9);
+    c1 = round2(c1, d1, a1, b1, x1_11, 9);
+    b0 = round2(b0, c0, d0, a0, x0_15, 13);
+    b1 = round2(b1, c1, d1, a1, x1_15, 13);
+
+    // round 3, one step for each lane at a time
+    a0 = round3(a0, b0, c0, d0, x0_0, 3);
+    a1 = round3(a1, b1, c1, d1, x1_0, 3);
+    d0 = round3(d0, a0, b0, c0, x0_8, 9);
+    d1 = round3(d1, a1, b1, c1, x1_8, 9);
+    c0 = round3(c0, d0, a0, b0, x0_4, 11);
+    c1 = round3(c1, d1, a1, b1, x1_4, 11);
+    b0 = round3(b0, c0, d0, a0, x0_12, 15);
+    b1 = round3(b1, c1, d1, a1, x1_12, 15);
+    a0 = round3(a0, b0, c0, d0, x0_2, 3);
+    a1 = round3(a1, b1, c1, d1, x1_2, 3);
+    d0 = round3(d0, a0, b0, c0, x0_10, 9);
+    d1 = round3(d1, a1, b1, c1, x1_10, 9);
+    c0 = round3(c0, d0, a0, b0, x0_6, 11);
+    c1 = round3(c1, d1, a1, b1, x1_6, 11);
+    b0 = round3(b0, c0, d0, a0, x0_14, 15);
+    b1 = round3(b1, c1, d1, a1, x1_14, 15);
+    a0 = round3(a0, b0, c0, d0, x0_1, 3);
+    a1 = round3(a1, b1, c1, d1, x1_1, 3);
+    d0 = round3(d0, a0, b0, c0, x0_9, 9);
+    d1 = round3(d1, a1, b1, c1, x1_9, 9);
+    c0 = round3(c0, d0, a0, b0, x0_5, 11);
+    c1 = round3(c1, d1, a1, b1, x1_5, 11);
+    b0 = round3(b0, c0, d0, a0, x0_13, 15);
+    b1 = round3(b1, c1, d1, a1, x1_13, 15);
+    a0 = round3(a0, b0, c0, d0, x0_3, 3);
+    a1 = round3(a1, b1, c1, d1, x1_3, 3);
+    d0 = round3(d0, a0, b0, c0, x0_11, 9);
+    d1 = round3(d1, a1, b1, c1, x1_11, 9);
+    c0 = round3(c0, d0, a0, b0, x0_7, 11);
+    c1 = round3(c1, d1, a1, b1, x1_7, 11);
+    b0 = round3(b0, c0, d0, a0, x0_15, 15);
+    b1 = round3(b1, c1, d1, a1, x1_15, 15);
+
+    this.lanes[0] += a0;
+    this.lanes[1] += b0;
+    this.lanes[2] += c0;
+    this.lanes[3] += d0;
+    this.lanes[4] += a1;
+    this.lanes[5] += b1;
+    this.lanes[6] += c1;
+    this.lanes[7] += d1;
+  }
+
+  private static int getInt(byte[] in, int offset) {
+    return (in[offset] & 0xff) | (in[offset + 1] & 0xff) << 8 | (in[offset + 2] & 0xff) << 16 | in[offset + 3] << 24;
+  }
+
+  private static int round1(int a, int b, int c, int d, int x, int s) {
+    return Integer.rotateLeft(a + ((b & c) | (~b & d)) + x, s);
+  }
+
+  private static int round2(int a, int b, int c, int d, int x, int s) {
+    return Integer.rotateLeft(a + ((b & (c | d)) | (c & d)) + x + 0x5a827999, s);
+  }
+
+  private static int round3(int a, int b, int c, int d, int x, int s) {
+    return Integer.rotateLeft(a + (b ^ c ^ d) + x + 0x6ed9eba1, s);
+  }
+
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Rolling window over a local file that reads directly from memory mapped regions of the file instead of copying into
+ * a heap buffer. Regions of at most the map size are mapped one at a time and remapped as the window advances, so
+ * files larger than 2GB are supported. The file is followed by a given number of zeros, equivalent to reading it
+ * through a {@link ZeroPaddedReadableByteChannel}. Bytes are reported as read once the window reaches them, in steps
+ * of at most {@link #REPORT_SIZE} bytes ahead, so that scans stopping early report only what they read.
+ * <p>
+ * Mapped regions are released when garbage collected, so the file should not be modified while it is being read. Files
+ * that must not stay mapped, e.g. since they are replaced once the scan is done, which fails on some platforms while a
+ * mapping is open, can be read into a heap buffer of {@link #READ_SIZE} bytes per region instead.
+ */
+public class MappedRollingBuffer implements RollingReadableByteBuffer {
+
+  public static final int DEFAULT_MAP_SIZE = 64 * 1024 * 1024;
+  public static final int READ_SIZE = 4 * 1024 * 1024;
+  static final int REPORT_SIZE = 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long size;
+  private final long paddedSize;
+  private final int length;
+  private final int mapSize;
+  private final boolean map;
+  private final TransferListener listener;
+
+  // absolute position of the window in the padded file
+  private long position;
+  // currently mapped region of the file, its absolute start position and the window's offset into it
+  private ByteBuffer mapped;
+  private long mapStart;
+  private int offset;
+  // end of the bytes reported so far, for reporting each byte of the file once
+  private long reportedEnd;
+
+  public MappedRollingBuffer(FileChannel channel, long start, long size, int zeros, int windowSize,
+      TransferListener listener) throws IOException {
+    this(channel, start, size, zeros, windowSize, true, listener);
+  }
+
+  /**
+   * Constructs a rolling buffer over the given file channel that maps regions of the file if the given flag is set, or
+   * reads them through the channel otherwise.
+   */
+  public MappedRollingBuffer(FileChannel channel, long start, long size, int zeros, int windowSize, boolean map,
+      TransferListener listener) throws IOException {
+    this(channel, start, size, zeros, windowSize, map ? DEFAULT_MAP_SIZE : Math.max(READ_SIZE, windowSize), map,
+        listener);
+  }
+
+  public MappedRollingBuffer(FileChannel channel, long start, long size, int zeros, int windowSize, int mapSize,
+      TransferListener listener) throws IOException {
+    this(channel, start, size, zeros, windowSize, mapSize, true, listener);
+  }
+
+  /**
+   * Constructs a rolling buffer over the given file channel, starting at the given position.
+   *
+   * @param channel Channel of the file to roll over
+   * @param start Position in the file at which the window starts
+   * @param size Size of the file
+   * @param zeros Number of zeros to append to the file
+   * @param windowSize Size of the window, must be positive
+   * @param mapSize Maximum size of mapped regions, must be at least the window size
+   * @param map Whether to map regions of the file or to read them into a heap buffer
+   * @param listener Notified of bytes of the file as the window reaches them, may be null
+   * @throws IOException If mapping or reading the file fails
+   */
+  public MappedRollingBuffer(FileChannel channel, long start, long size, int zeros, int windowSize, int mapSize,
+      boolean map, TransferListener listener) throws IOException {
+    if (channel == null) {
+      throw new IllegalArgumentException("channel must not be null");
+    }
+    if (windowSize <= 0 || mapSize < windowSize) {
+      throw new IllegalArgumentException("window size must be positive and map size at least as large");
+    }
+    if (zeros < 0 || start < 0 || start > size) {
+      throw new IllegalArgumentException("invalid start " + start + " or number of zeros " + zeros);
+    }
+    if (size + zeros - start < windowSize) {
+      throw new IllegalArgumentException("Insufficient bytes available (" + (size + zeros - start)
+          + ") to satisfy window size " + windowSize);
+    }
+    this.channel = channel;
+    this.size = size;
+    this.paddedSize = size + zeros;
+    this.length = windowSize;
+    this.mapSize = mapSize;
+    this.map = map;
+    this.listener = listener;
+    this.position = start;
+    this.reportedEnd = start;
+    this.map();
+    this.report();
+  }
+
+  @Override
+  public boolean advance(int bytes) throws IOException {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Cannot advance window backwards");
+    }
+    if (bytes > this.length) {
+      throw new IllegalArgumentException("Cannot advance window beyond current end position");
+    }
+    if (this.position + bytes + this.length > this.paddedSize) {
+      return false;
+    }
+    this.position += bytes;
+    this.offset += bytes;
+    // remap once the window extends past the mapped region, unless the region already extends to the end of file
+    if (this.offset + this.length > this.mapped.limit() && this.mapStart + this.mapped.limit() < this.size) {
+      this.map();
+    }
+    if (this.position + this.length > this.reportedEnd) {
+      this.report();
+    }
+    return true;
+  }
+
+  @Override
+  public long position() {
+    return this.position;
+  }
+
+  /**
+   * Returns the maximum size of the regions mapped or read at a time
+   */
+  public int getMapSize() {
+    return this.mapSize;
+  }
+
+  /**
+   * Copies bytes up to the end of the currently mapped region, followed by zeros if the region ends with the file.
+   */
+  @Override
+  public int copy(int offset, byte[] dst, int dstOffset, int length) {
+    if (offset < 0 || length < 0) {
+      throw new IndexOutOfBoundsException("Invalid offset " + offset + " or length " + length);
+    }
+    final int start = this.offset + offset;
+    final int limit = this.mapped.limit();
+    int n = Math.max(0, Math.min(length, limit - start));
+    if (n > 0) {
+      this.mapped.position(start);
+      this.mapped.get(dst, dstOffset, n);
+      this.mapped.position(0);
+    }
+    if (n < length && this.mapStart + limit >= this.size) {
+      final int zeros = (int) Math.max(0, Math.min(length - n, this.paddedSize - this.position - offset - n));
+      Arrays.fill(dst, dstOffset + n, dstOffset + n + zeros, (byte) 0);
+      n += zeros;
+    }
+    return n;
+  }
+
+  @Override
+  public int length() {
+    return this.length;
+  }
+
+  /**
+   * Returns the byte at the given index within the current window
+   */
+  @Override
+  public byte get(int i) {
+    if (i < 0 || i >= this.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    final int j = this.offset + i;
+    // the mapped region covers the window except for the zeros past the end of the file
+    return j < this.mapped.limit() ? this.mapped.get(j) : 0;
+  }
+
+  @Override
+  public void write(WritableByteChannel channel) throws IOException {
+    this.write(channel, 0, this.length);
+  }
+
+  @Override
+  public void write(WritableByteChannel channel, int offset, int length) throws IOException {
+    if (offset < 0 || offset >= this.length) {
+      throw new IndexOutOfBoundsException("Invalid offset " + offset);
+    }
+    if (offset + length > this.length) {
+      throw new IndexOutOfBoundsException("Invalid length " + length);
+    }
+    final int start = this.offset + offset;
+    final int limit = this.mapped.limit();
+    final int mappedLength = Math.max(0, Math.min(length, limit - start));
+    if (mappedLength > 0) {
+      try {
+        this.mapped.limit(start + mappedLength).position(start);
+        do {
+          channel.write(this.mapped);
+        } while (this.mapped.hasRemaining());
+      } finally {
+        this.mapped.limit(limit).position(0);
+      }
+    }
+    if (mappedLength < length) {
+      final ByteBuffer zeros = ByteBuffer.allocate(length - mappedLength);
+      do {
+        channel.write(zeros);
+      } while (zeros.hasRemaining());
+    }
+  }
+
+  /**
+   * Maps or reads the region of the file starting at the current window position
+   */
+  private void map() throws IOException {
+    final int l = (int) Math.min(this.mapSize, Math.max(0, this.size - this.position));
+    if (l == 0) {
+      this.mapped = ByteBuffer.allocate(0);
+    } else if (this.map) {
+      this.mapped = this.channel.map(READ_ONLY, this.position, l);
+    } else {
+      // the heap buffer is reused for the following regions, which are never larger
+      if (this.mapped == null || this.mapped.capacity() < l) {
+        this.mapped = ByteBuffer.allocate(l);
+      }
+      this.mapped.clear().limit(l);
+      do {
+        if (this.channel.read(this.mapped, this.position + this.mapped.position()) < 0) {
+          throw new EOFException("File ended before position " + (this.position + l));
+        }
+      } while (this.mapped.hasRemaining());
+      this.mapped.flip();
+    }
+    this.mapStart = this.position;
+    this.offset = 0;
+  }
+
+  /**
+   * Reports bytes of the file up to a step past the end of the window
+   */
+  private void report() {
+    final long end = Math.min(this.size, this.position + this.length + REPORT_SIZE);
+    if (end > this.reportedEnd) {
+      if (this.listener != null) {
+        this.listener.transferred(end - this.reportedEnd);
+      }
+      this.reportedEnd = end;
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static com.salesforce.zsync.internal.util.HttpClient.MAXIMUM_RANGES_PER_HTTP_REQUEST;
+
+import java.util.Iterator;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.salesforce.zsync.http.ContentRange;
+
+/**
+ * Merges ranges to download that are separated by gaps small enough that downloading a gap costs less than requesting
+ * the ranges on either side of it separately. Each range of a multipart response costs its part headers, and each
+ * {@link HttpClient#MAXIMUM_RANGES_PER_HTTP_REQUEST} ranges cost a request, i.e. its headers and a round trip during
+ * which the connection could have transferred round trip time times bandwidth bytes. A gap is downloaded if it is no
+ * larger than the part overhead plus each range's share of the request overhead.
+ */
+public class RangeCoalescer {
+
+  // boundary line and part headers of a range in a multipart response
+  static final int PART_OVERHEAD = 128;
+  // request line, request headers and response headers of a range request
+  static final int REQUEST_OVERHEAD = 1024;
+
+  private final long maxGap;
+
+  /**
+   * @param roundTripMillis round trip time to the server in milliseconds
+   * @param bytesPerSecond bandwidth of the connection to the server in bytes per second
+   */
+  public RangeCoalescer(long roundTripMillis, long bytesPerSecond) {
+    if (roundTripMillis < 0 || bytesPerSecond < 0) {
+      throw new IllegalArgumentException("round trip time and bandwidth must not be negative");
+    }
+    final long requestOverhead = REQUEST_OVERHEAD + roundTripMillis * bytesPerSecond / 1000;
+    this.maxGap = PART_OVERHEAD + requestOverhead / MAXIMUM_RANGES_PER_HTTP_REQUEST;
+  }
+
+  /**
+   * Largest gap between two ranges that is downloaded rather than requested around
+   */
+  public long getMaxGap() {
+    return this.maxGap;
+  }
+
+  /**
+   * Returns the given ordered ranges with those separated by no more than the maximum gap merged, consuming the given
+   * iterator only as far as needed for the next merged range.
+   */
+  public Iterator<ContentRange> coalesce(Iterator<ContentRange> ranges) {
+    final PeekingIterator<ContentRange> it = Iterators.peekingIterator(ranges);
+    return new AbstractIterator<ContentRange>() {
+      @Override
+      protected ContentRange computeNext() {
+        if (!it.hasNext()) {
+          return this.endOfData();
+        }
+        final ContentRange range = it.next();
+        long last = range.last();
+        while (it.hasNext() && it.peek().first() - last - 1 <= RangeCoalescer.this.maxGap) {
+          last = it.next().last();
+        }
+        return last == range.last() ? range : new ContentRange(range.first(), last);
+      }
+    };
+  }
+
+}
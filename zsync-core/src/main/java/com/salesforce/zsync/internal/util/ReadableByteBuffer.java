@@ -68,4 +68,18 @@ public interface ReadableByteBuffer {
    */
   void write(WritableByteChannel channel, int offset, int length) throws IOException;
 
+  /**
+   * Bulk operation for copying bytes starting at the given offset from the start of the current window into the given
+   * array. Unlike other operations, the range to copy may extend past the end of the window for buffers that roll over
+   * a larger source. Fewer bytes than requested may be copied if they are not readily available.
+   *
+   * @param offset offset from the start of the current window
+   * @param dst
+   * @param dstOffset
+   * @param length maximum number of bytes to copy
+   * @return number of bytes copied
+   * @throws IOException
+   */
+  int copy(int offset, byte[] dst, int dstOffset, int length) throws IOException;
+
 }
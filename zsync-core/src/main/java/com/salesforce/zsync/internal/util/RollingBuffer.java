@@ -36,7 +36,7 @@ import java.nio.channels.WritableByteChannel;
  * @author bbusjaeger
  *
  */
-public class RollingBuffer implements ReadableByteBuffer {
+public class RollingBuffer implements RollingReadableByteBuffer {
 
   // the source this buffer provides a view over
   private final ReadableByteChannel channel;
@@ -44,6 +44,8 @@ public class RollingBuffer implements ReadableByteBuffer {
   private final ByteBuffer buffer;
   // length of window
   private final int length;
+  // position of window in channel
+  private long position;
 
   /**
    * Constructs a rolling buffer over the given channel. The constructor initializes the buffer by
@@ -86,6 +88,7 @@ public class RollingBuffer implements ReadableByteBuffer {
    *         the request number.
    * @throws IOException
    */
+  @Override
   public boolean advance(int bytes) throws IOException {
     if (bytes < 0) {
       throw new IllegalArgumentException("Cannot advance window backwards");
@@ -99,9 +102,34 @@ public class RollingBuffer implements ReadableByteBuffer {
     }
 
     this.buffer.position(this.buffer.position() + bytes);
+    this.position += bytes;
     return true;
   }
 
+  @Override
+  public long position() {
+    return this.position;
+  }
+
+  /**
+   * Copies bytes from the underlying buffer, reading more from the channel if few bytes are buffered.
+   */
+  @Override
+  public int copy(int offset, byte[] dst, int dstOffset, int length) throws IOException {
+    if (offset < 0 || length < 0) {
+      throw new IndexOutOfBoundsException("Invalid offset " + offset + " or length " + length);
+    }
+    final int wanted = Math.min(offset + length, this.buffer.capacity());
+    // compact only once at most half the buffer remains, rather than each time a full buffer is requested
+    if (this.buffer.remaining() < Math.min(wanted, this.buffer.capacity() / 2)) {
+      ensureBuffered(Math.max(0, wanted - this.length));
+    }
+    final int n = Math.max(0, Math.min(length, this.buffer.remaining() - offset));
+    System.arraycopy(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position() + offset, dst, dstOffset,
+        n);
+    return n;
+  }
+
   /**
    * Returns the length of the window
    */
@@ -31,7 +31,9 @@ import java.nio.channels.ReadableByteChannel;
 
 /**
  * Appends a given number of zeros to a channel by reading them into the buffer once the underlying
- * channel has reached the end of the stream.
+ * channel has reached the end of the stream. Alternatively, the number of zeros can be determined
+ * at the end of the stream, for channels whose length is not known in advance, see
+ * {@link #padToBlockSize(ReadableByteChannel, int, int)}.
  *
  * @author bbusjaeger
  *
@@ -39,8 +41,12 @@ import java.nio.channels.ReadableByteChannel;
 public class ZeroPaddedReadableByteChannel implements ReadableByteChannel {
 
   private final ReadableByteChannel channel;
-  private final int zeros;
+  private int zeros;
   int remaining;
+  // if positive, zeros are determined at the end of the stream from the number of bytes read
+  private final int blockSize;
+  private final int minLength;
+  private long length;
 
   /**
    * Constructs a new padded channel
@@ -58,6 +64,35 @@ public class ZeroPaddedReadableByteChannel implements ReadableByteChannel {
     this.channel = channel;
     this.zeros = zeros;
     this.remaining = -1;
+    this.blockSize = 0;
+    this.minLength = 0;
+  }
+
+  private ZeroPaddedReadableByteChannel(ReadableByteChannel channel, int blockSize, int minLength) {
+    if (channel == null) {
+      throw new IllegalArgumentException("underlying channel must not be null");
+    }
+    if (blockSize <= 0 || minLength < 0) {
+      throw new IllegalArgumentException("block size must be positive and minimum length not negative");
+    }
+    this.channel = channel;
+    this.remaining = -1;
+    this.blockSize = blockSize;
+    this.minLength = minLength;
+  }
+
+  /**
+   * Pads the given channel with zeros to a multiple of the given block size, or to the given minimum
+   * length if it is shorter, as for input files of known size.
+   *
+   * @param channel Channel to pad with zeros
+   * @param blockSize block size to pad the channel to a multiple of
+   * @param minLength minimum length of the padded channel
+   * @return
+   */
+  public static ZeroPaddedReadableByteChannel padToBlockSize(ReadableByteChannel channel, int blockSize,
+      int minLength) {
+    return new ZeroPaddedReadableByteChannel(channel, blockSize, minLength);
   }
 
   /**
@@ -86,9 +121,15 @@ public class ZeroPaddedReadableByteChannel implements ReadableByteChannel {
     if (this.remaining == -1) {
       int read = this.channel.read(dst);
       if (read == -1) {
+        if (this.blockSize > 0) {
+          final int lastBlockSize = (int) (this.length % this.blockSize);
+          this.zeros = this.length < this.minLength ? (int) (this.minLength - this.length)
+              : lastBlockSize == 0 ? 0 : this.blockSize - lastBlockSize;
+        }
         this.remaining = this.zeros;
         return readPadded(dst);
       } else {
+        this.length += read;
         return read;
       }
     } else {
@@ -25,7 +25,9 @@
  */
 package com.salesforce.zsync.internal.util;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
@@ -35,12 +37,20 @@ import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.mina.proxy.utils.MD4;
+import org.tukaani.xz.XZInputStream;
+
+import com.google.common.io.ByteStreams;
 
 public class ZsyncUtil {
 
   private static final char[] HEX_CODE = "0123456789abcdef".toCharArray();
+  private static final byte[] GZIP_MAGIC = { 0x1f, (byte) 0x8b };
+  private static final byte[] XZ_MAGIC = { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 };
+  private static final int DECOMPRESSION_BUFFER_SIZE = 64 * 1024;
   private static final Provider md4Provider;
 
   static {
@@ -61,14 +71,32 @@ public class ZsyncUtil {
   }
 
   public static int computeRsum(byte[] block) {
-    short a = 0;
-    short b = 0;
-    for (int i = 0, l = block.length; i < block.length; i++, l--) {
-      final short val = unsigned(block[i]);
-      a += val;
-      b += l * val;
+    return computeRsum(block, 0, block.length);
+  }
+
+  /**
+   * Computes the rolling checksum of the given range, equal to summing each unsigned byte into a and its value
+   * multiplied by its distance from the end of the range into b, modulo 2^16. Instead, b is accumulated as the sum of
+   * the running values of a, four bytes per iteration, which avoids multiplying by the distance and lets the
+   * additions of successive bytes overlap.
+   */
+  public static int computeRsum(byte[] bytes, int offset, int length) {
+    int a = 0;
+    int b = 0;
+    int i = offset;
+    for (final int end = offset + (length & ~3); i < end; i += 4) {
+      final int v0 = bytes[i] & 0xff;
+      final int v1 = bytes[i + 1] & 0xff;
+      final int v2 = bytes[i + 2] & 0xff;
+      final int v3 = bytes[i + 3] & 0xff;
+      b += (a << 2) + 4 * v0 + 3 * v1 + 2 * v2 + v3;
+      a += v0 + v1 + v2 + v3;
+    }
+    for (final int end = offset + length; i < end; i++) {
+      a += bytes[i] & 0xff;
+      b += a;
     }
-    return toInt(a, b);
+    return toInt((short) a, (short) b);
   }
 
   public static int toInt(short x, short y) {
@@ -83,6 +111,34 @@ public class ZsyncUtil {
     return (short) (b < 0 ? b & 0xFF : b);
   }
 
+  /**
+   * Returns a stream of the decompressed content of the given gzip or xz compressed stream, telling the formats apart
+   * by their magic bytes. The given stream is closed if it is in neither format.
+   *
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public static InputStream decompress(InputStream in) throws IOException {
+    try {
+      final InputStream buffered = new BufferedInputStream(in, DECOMPRESSION_BUFFER_SIZE);
+      final byte[] magic = new byte[XZ_MAGIC.length];
+      buffered.mark(magic.length);
+      final int n = ByteStreams.read(buffered, magic, 0, magic.length);
+      buffered.reset();
+      if (n >= GZIP_MAGIC.length && magic[0] == GZIP_MAGIC[0] && magic[1] == GZIP_MAGIC[1]) {
+        return new GZIPInputStream(buffered, DECOMPRESSION_BUFFER_SIZE);
+      }
+      if (n == XZ_MAGIC.length && Arrays.equals(magic, XZ_MAGIC)) {
+        return new XZInputStream(buffered);
+      }
+      throw new IOException("Input is neither gzip nor xz compressed");
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
   public static String computeSha1(ReadableByteChannel channel) throws IOException {
     final MessageDigest sha1 = newSHA1();
     final ByteBuffer buf = ByteBuffer.allocate(8192);
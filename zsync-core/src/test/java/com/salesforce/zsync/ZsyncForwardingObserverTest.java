@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.ZsyncStatsObserver.MatchStats;
+import com.salesforce.zsync.ZsyncStatsObserver.ZsyncStats;
+
+public class ZsyncForwardingObserverTest {
+
+  @Test
+  public void testForwardsBytesSkipped() {
+    final Path inputFile = Paths.get("input");
+    final ZsyncStatsObserver first = new ZsyncStatsObserver();
+    final ZsyncStatsObserver second = new ZsyncStatsObserver();
+    final ZsyncForwardingObserver observer = new ZsyncForwardingObserver(first, second);
+
+    observer.inputFileReadingStarted(inputFile, 100);
+    observer.bytesRead(60);
+    observer.inputFileBytesSkipped(40);
+    observer.inputFileReadingComplete();
+
+    for (ZsyncStatsObserver target : new ZsyncStatsObserver[] { first, second }) {
+      final ZsyncStats stats = target.build();
+      assertEquals(40L, (long) stats.getTotalBytesSkippedByInputFile().get(inputFile));
+    }
+  }
+
+  @Test
+  public void testForwardsMatchStatistics() {
+    final Path inputFile = Paths.get("input");
+    final ZsyncStatsObserver first = new ZsyncStatsObserver();
+    final ZsyncStatsObserver second = new ZsyncStatsObserver();
+    final ZsyncForwardingObserver observer = new ZsyncForwardingObserver(first, second);
+
+    observer.inputFileReadingStarted(inputFile, 100);
+    observer.inputFilePrefilterStatistics(50, 20, 5);
+    observer.inputFileMatchStatistics(100, 15, 3, 10, 2);
+    observer.inputFileReadingComplete();
+
+    for (ZsyncStatsObserver target : new ZsyncStatsObserver[] { first, second }) {
+      final MatchStats stats = target.build().getMatchStatsByInputFile().get(inputFile);
+      assertEquals(100, stats.getBytesScanned());
+      assertEquals(15, stats.getRsumHits());
+      assertEquals(15, stats.getStrongChecksums());
+      assertEquals(3, stats.getChecksumMisses());
+      assertEquals(10, stats.getBlocksWritten());
+      assertEquals(2, stats.getDuplicateBlocks());
+    }
+  }
+
+}
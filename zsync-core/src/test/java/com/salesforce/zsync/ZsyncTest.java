@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.salesforce.zsync.http.ContentRange;
+
+public class ZsyncTest {
+
+  /**
+   * A single large range is split at block boundaries so that every request gets a share
+   */
+  @Test
+  public void testPartitionSplitsLargeRanges() {
+    final List<List<ContentRange>> batches =
+        Zsync.partitionRanges(ImmutableList.of(new ContentRange(0, 4095), new ContentRange(8192, 8199)), 4, 256);
+    assertEquals(4, batches.size());
+    // the small range goes to one of the equally loaded requests, which is then the largest
+    assertEquals(2, batches.get(0).size());
+    assertEquals(new ContentRange(8192, 8199), batches.get(0).get(1));
+    final Set<ContentRange> pieces = new HashSet<>();
+    for (List<ContentRange> batch : batches) {
+      assertEquals(1024, batch.get(0).length());
+      pieces.add(batch.get(0));
+    }
+    assertEquals(ImmutableSet.of(new ContentRange(0, 1023), new ContentRange(1024, 2047), new ContentRange(2048, 3071),
+        new ContentRange(3072, 4095)), pieces);
+  }
+
+  /**
+   * Batches are balanced by bytes, ordered largest first, and hold their ranges in order
+   */
+  @Test
+  public void testPartitionBalancesBatches() {
+    final List<ContentRange> ranges = new ArrayList<>();
+    for (int i = 0; i < 250; i++) {
+      ranges.add(new ContentRange(i * 4096L, i * 4096L + (i % 7 + 1) * 256 - 1));
+    }
+    final List<List<ContentRange>> batches = Zsync.partitionRanges(ranges, 2, 256);
+    // no more ranges per request than the http client sends at once
+    assertEquals(3, batches.size());
+    long previous = Long.MAX_VALUE;
+    int count = 0;
+    for (List<ContentRange> batch : batches) {
+      assertTrue(batch.size() <= 100);
+      long bytes = 0;
+      for (int i = 0; i < batch.size(); i++) {
+        bytes += batch.get(i).length();
+        assertTrue(i == 0 || batch.get(i - 1).last() < batch.get(i).first());
+      }
+      assertTrue(bytes <= previous);
+      previous = bytes;
+      count += batch.size();
+    }
+    assertEquals(250, count);
+    // largest first assignment leaves requests apart by at most the largest range
+    long first = 0;
+    for (ContentRange range : batches.get(0)) {
+      first += range.length();
+    }
+    assertTrue(first - previous <= 7 * 256);
+  }
+
+}
@@ -25,19 +25,34 @@
  */
 package com.salesforce.zsync.integration;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.salesforce.zsync.Zsync;
 import com.salesforce.zsync.Zsync.Options;
+import com.salesforce.zsync.ZsyncStatsObserver;
+import com.salesforce.zsync.ZsyncStatsObserver.MatchStats;
+import com.salesforce.zsync.ZsyncStatsObserver.ZsyncStats;
+import com.salesforce.zsync.http.ContentRange;
 import com.squareup.okhttp.OkHttpClient;
 
 /**
@@ -65,9 +80,201 @@ public class GetTest extends BaseJettyTest {
   }
 
   @Test
-  @Ignore
   public void testWithTwoInputFiles() throws Exception {
-    fail("Not implemented");
+    // Arrange
+    Path oldGuava = Paths.get(this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar")
+        .toURI());
+    Path olderGuava = Paths.get(this.getClass()
+        .getResource(REPO_ROOT + "com/google/guava/guava/13.0-rc2/guava-13.0-rc2.jar").toURI());
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.createTempFile(".jar");
+    Options options = new Options().addInputFile(oldGuava).addInputFile(olderGuava).setOutputFile(outputPath);
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+    // the empty output file created upfront is used as an input file as well
+    ZsyncStats stats = observer.build();
+    assertEquals(ImmutableMap.of(oldGuava, Files.size(oldGuava), olderGuava, Files.size(olderGuava), outputPath, 0L),
+        stats.getTotalBytesReadByInputFile());
+    assertEquals(stats.getMatchStatsByInputFile().keySet(), stats.getTotalBytesReadByInputFile().keySet());
+    MatchStats matchStats = stats.getMatchStatsByInputFile().get(oldGuava);
+    assertTrue(matchStats.getBlocksWritten() > 0);
+    assertTrue(matchStats.getStrongChecksums() >= matchStats.getChecksumMisses());
+  }
+
+  @Test
+  public void testWithTwoInputFilesConcurrently() throws Exception {
+    // Arrange
+    Path oldGuava = Paths.get(this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar")
+        .toURI());
+    Path olderGuava = Paths.get(this.getClass()
+        .getResource(REPO_ROOT + "com/google/guava/guava/13.0-rc2/guava-13.0-rc2.jar").toURI());
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.createTempFile(".jar");
+    Options options = new Options().addInputFile(oldGuava).addInputFile(olderGuava).setOutputFile(outputPath)
+        .setConcurrentInputFiles(2).setScanParallelism(2);
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+    // the empty output file created upfront is used as an input file as well
+    assertEquals(ImmutableMap.of(oldGuava, Files.size(oldGuava), olderGuava, Files.size(olderGuava), outputPath, 0L),
+        observer.build().getTotalBytesReadByInputFile());
+  }
+
+  @Test
+  public void testWithSampledInputFiles() throws Exception {
+    // Arrange
+    Path oldGuava = Paths.get(this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar")
+        .toURI());
+    Path olderGuava = Paths.get(this.getClass()
+        .getResource(REPO_ROOT + "com/google/guava/guava/13.0-rc2/guava-13.0-rc2.jar").toURI());
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.createTempFile(".jar");
+    Options options = new Options().addInputFile(olderGuava).addInputFile(oldGuava).setOutputFile(outputPath)
+        .setInputFileSamples(16);
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+    // the empty output file holds no blocks of the target, so it is not scanned
+    Set<Path> scanned = observer.build().getTotalBytesReadByInputFile().keySet();
+    assertTrue(scanned.contains(oldGuava));
+    assertFalse(scanned.contains(outputPath));
+  }
+
+  @Test
+  public void testWithCompressedInputFile() throws Exception {
+    // Arrange
+    Path oldGuava = Paths.get(this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar")
+        .toURI());
+    Path compressedGuava = super.createTempFile(".jar.gz");
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressedGuava))) {
+      Files.copy(oldGuava, out);
+    }
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.createTempFile(".jar");
+    Options options = new Options().addCompressedInputFile(compressedGuava).setOutputFile(outputPath);
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+    // the decompressed content is read in a single pass
+    assertEquals(Files.size(oldGuava), (long) observer.build().getTotalBytesReadByInputFile().get(compressedGuava));
+  }
+
+  @Test
+  public void testWithSavedBlockSums() throws Exception {
+    // Arrange
+    Path oldGuava = Paths.get(this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar")
+        .toURI());
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.createTempFile(".jar");
+    Path blockSumsPath = outputPath.resolveSibling(outputPath.getFileName() + ".zsums");
+    blockSumsPath.toFile().deleteOnExit();
+    new Zsync(new OkHttpClient()).zsync(uri, new Options().addInputFile(oldGuava).setOutputFile(outputPath)
+        .setSaveBlockSums(true));
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, new Options().setOutputFile(outputPath)
+        .setSaveBlockSums(true), observer);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+    assertTrue(Files.exists(blockSumsPath));
+    // all blocks of the output file are matched by their stored block sums, so nothing is scanned or downloaded
+    ZsyncStats stats = observer.build();
+    assertEquals(0L, (long) stats.getTotalBytesReadByInputFile().get(outputPath));
+    assertEquals(Files.size(outputPath), (long) stats.getTotalBytesSkippedByInputFile().get(outputPath));
+    assertEquals(0L, stats.getBytesDownloadedFromRemoteFile());
+  }
+
+  @Test
+  public void testWithCoalescedRanges() throws Exception {
+    // Arrange
+    Path oldGuava = Paths.get(this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar")
+        .toURI());
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+    new Zsync(new OkHttpClient()).zsync(uri, new Options().addInputFile(oldGuava).setOutputFile(
+        super.createTempFile(".jar")), observer);
+    ZsyncStatsObserver coalescedObserver = new ZsyncStatsObserver();
+
+    // Act
+    new Zsync(new OkHttpClient()).zsync(uri, new Options().addInputFile(oldGuava).setOutputFile(
+        super.createTempFile(".jar")).setRemoteRoundTripMillis(50).setRemoteBytesPerSecond(10 * 1024 * 1024),
+        coalescedObserver);
+
+    // Assert
+    ZsyncStats stats = observer.build();
+    ZsyncStats coalescedStats = coalescedObserver.build();
+    // ranges separated by a block or two are downloaded in one
+    assertTrue(countRanges(coalescedStats) < countRanges(stats));
+  }
+
+  @Test
+  public void testWithConcurrentRangeRequests() throws Exception {
+    // Arrange
+    Path oldGuava = Paths.get(this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar")
+        .toURI());
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+    Path sequentialOutputPath = super.createTempFile(".jar");
+    new Zsync(new OkHttpClient()).zsync(uri, new Options().addInputFile(oldGuava).setOutputFile(sequentialOutputPath),
+        observer);
+    Path outputPath = super.createTempFile(".jar");
+    ZsyncStatsObserver concurrentObserver = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, new Options().addInputFile(oldGuava)
+        .setOutputFile(outputPath).putConcurrentRangeRequests(uri.getHost(), 4), concurrentObserver);
+
+    // Assert
+    assertEquals("results has wrong output file path", outputPath, result);
+    ZsyncStats stats = observer.build();
+    ZsyncStats concurrentStats = concurrentObserver.build();
+    // the same content is downloaded, reported as one download of all missing ranges
+    assertArrayEquals(Files.readAllBytes(sequentialOutputPath), Files.readAllBytes(outputPath));
+    final Map<List<ContentRange>, Long> requests =
+        concurrentStats.getElapsedMillisecondsDownloadingRemoteFileByRequest();
+    assertEquals(1, requests.size());
+    assertEquals(countBytes(stats.getElapsedMillisecondsDownloadingRemoteFileByRequest().keySet()),
+        countBytes(requests.keySet()));
+    assertEquals(concurrentStats.getElapsedMillisecondsDownloadingRemoteFile(),
+        (long) Iterables.getOnlyElement(requests.values()));
+    assertTrue(concurrentStats.getBytesDownloadedFromRemoteFile() >= countBytes(requests.keySet()));
+  }
+
+  private static int countRanges(ZsyncStats stats) {
+    int n = 0;
+    for (List<ContentRange> ranges : stats.getElapsedMillisecondsDownloadingRemoteFileByRequest().keySet()) {
+      n += ranges.size();
+    }
+    return n;
+  }
+
+  private static long countBytes(Iterable<List<ContentRange>> requests) {
+    long n = 0;
+    for (List<ContentRange> ranges : requests) {
+      for (ContentRange range : ranges) {
+        n += range.length();
+      }
+    }
+    return n;
   }
 
   @Test
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.salesforce.zsync.ZsyncMake;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+
+public class AlignedBlockScannerTest {
+
+  private static final int BLOCK_SIZE = 256;
+
+  /**
+   * With sequential matches, a stored block sum that collides with the target block at its own position is not enough
+   * to write the block: its neighbor has to match the target's neighbor as well, as it does for blocks joined elsewhere
+   */
+  @Test
+  public void testJoinSeqMatchesCollision() throws IOException {
+    final Random random = new Random(3);
+    final byte[] target = new byte[10 * BLOCK_SIZE];
+    random.nextBytes(target);
+    final byte[] input = new byte[10 * BLOCK_SIZE];
+    random.nextBytes(input);
+    // input blocks 1 and 2 are target blocks 5 and 6, input block 0 only collides with target block 0
+    System.arraycopy(target, 5 * BLOCK_SIZE, input, BLOCK_SIZE, 2 * BLOCK_SIZE);
+
+    final Path targetFile = Files.createTempFile("target", null);
+    final Path inputFile = Files.createTempFile("input", null);
+    final Path output = Files.createTempFile("output", null);
+    try {
+      Files.write(targetFile, target);
+      Files.write(inputFile, input);
+      final ControlFile controlFile = controlFile(targetFile);
+      final List<? extends BlockSum> targetSums = controlFile.getBlockSums();
+      final List<BlockSum> inputSums = new ArrayList<>();
+      inputSums.add(targetSums.get(0));
+      inputSums.add(targetSums.get(5));
+      inputSums.add(targetSums.get(6));
+      for (int i = 3; i < 10; i++) {
+        final byte[] checksum = new byte[controlFile.getHeader().getChecksumBytes()];
+        random.nextBytes(checksum);
+        inputSums.add(new ImmutableBlockSum(random.nextInt(), checksum));
+      }
+      BlockSumsFile.write(inputFile, new ControlFile(controlFile.getHeader(), inputSums));
+
+      final OutputFileWriter writer = new OutputFileWriter(output, controlFile, listener());
+      try (FileChannel channel = FileChannel.open(inputFile)) {
+        final AlignedBlockScanner aligned = new AlignedBlockScanner(controlFile);
+        assertTrue(aligned.join(writer, channel, input.length, 0, 2 * BLOCK_SIZE, BlockSumsFile.read(inputFile)));
+        assertEquals(2, aligned.getBlocksWritten());
+        assertEquals(ImmutableList.of(new ContentRange(0, 5 * BLOCK_SIZE - 1), new ContentRange(7 * BLOCK_SIZE,
+            target.length - 1)), writer.getMissingRanges());
+      } finally {
+        try {
+          writer.close();
+        } catch (ChecksumValidationIOException e) {
+          // expected, since output is incomplete
+        }
+      }
+    } finally {
+      Files.deleteIfExists(BlockSumsFile.getPath(inputFile));
+      Files.delete(targetFile);
+      Files.delete(inputFile);
+      Files.deleteIfExists(output);
+      Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".part"));
+    }
+  }
+
+  private static ControlFile controlFile(Path file) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(file, out, new ZsyncMake.Options().setBlockSize(BLOCK_SIZE));
+    final ControlFile controlFile = ControlFile.read(new ByteArrayInputStream(out.toByteArray()));
+    final Header h = controlFile.getHeader();
+    return new ControlFile(new Header(h.getVersion(), h.getFilename(), h.getMtime(), h.getBlocksize(), h.getLength(),
+        h.getChecksumBytes(), h.getRsumBytes(), true, h.getUrl(), h.getSha1()), controlFile.getBlockSums());
+  }
+
+  private static ResourceTransferListener<Path> listener() {
+    return new ResourceTransferListener<Path>() {
+      @Override
+      public void start(Path resource, long length) {}
+
+      @Override
+      public void transferred(long bytes) {}
+
+      @Override
+      public void close() {}
+    };
+  }
+
+}
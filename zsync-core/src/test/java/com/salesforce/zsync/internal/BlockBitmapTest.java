@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class BlockBitmapTest {
+
+  @Test
+  public void testSet() {
+    final BlockBitmap bitmap = new BlockBitmap(130);
+    assertEquals(130, bitmap.size());
+    for (int i : new int[] { 0, 63, 64, 129 }) {
+      assertFalse(bitmap.get(i));
+      assertTrue(bitmap.set(i));
+      assertTrue(bitmap.get(i));
+      assertFalse(bitmap.set(i));
+    }
+    assertFalse(bitmap.get(1));
+    assertFalse(bitmap.get(65));
+    assertFalse(bitmap.get(128));
+  }
+
+  /**
+   * Word at a time scans agree with checking bit by bit, for sparse, dense and saturated bitmaps
+   */
+  @Test
+  public void testNextBits() {
+    final Random random = new Random(3);
+    for (double density : new double[] { 0, 0.01, 0.5, 0.99, 1 }) {
+      for (int size : new int[] { 0, 1, 63, 64, 65, 1000 }) {
+        final BlockBitmap bitmap = new BlockBitmap(size);
+        for (int i = 0; i < size; i++) {
+          if (random.nextDouble() < density) {
+            bitmap.set(i);
+          }
+        }
+        for (int from = 0; from <= size + 1; from++) {
+          assertEquals(next(bitmap, from, true), bitmap.nextSetBit(from));
+          assertEquals(next(bitmap, from, false), bitmap.nextClearBit(from));
+        }
+      }
+    }
+  }
+
+  private static int next(BlockBitmap bitmap, int from, boolean set) {
+    for (int i = from; i < bitmap.size(); i++) {
+      if (bitmap.get(i) == set) {
+        return i;
+      }
+    }
+    return bitmap.size();
+  }
+
+  /**
+   * Each bit is claimed by exactly one of several threads setting all bits
+   */
+  @Test
+  public void testConcurrentSet() throws Exception {
+    final BlockBitmap bitmap = new BlockBitmap(100000);
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Integer>> results = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            int claimed = 0;
+            for (int i = 0; i < bitmap.size(); i++) {
+              if (bitmap.set(i)) {
+                claimed++;
+              }
+            }
+            return claimed;
+          }
+        }));
+      }
+      int claimed = 0;
+      for (Future<Integer> result : results) {
+        claimed += result.get();
+      }
+      assertEquals(bitmap.size(), claimed);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+
+public class BlockIndexTest {
+
+  @Test
+  public void testEmpty() {
+    final BlockIndex index = new BlockIndex(ImmutableList.<BlockSum>of(), 3);
+    assertEquals(0, index.getNumBlocks());
+    assertEquals(-1, index.find(sum(1, 1, 2, 3)));
+  }
+
+  @Test
+  public void testDuplicatePositionsAscending() {
+    final List<BlockSum> sums = ImmutableList.<BlockSum>of(sum(7, 1, 2, 3), sum(8, 1, 2, 3), sum(7, 1, 2, 3),
+        sum(7, 1, 2, 4), sum(7, 1, 2, 3));
+    final BlockIndex index = new BlockIndex(sums, 3);
+    assertEquals(ImmutableList.of(0, 2, 4), positions(index, sum(7, 1, 2, 3)));
+    assertEquals(ImmutableList.of(1), positions(index, sum(8, 1, 2, 3)));
+    assertEquals(ImmutableList.of(3), positions(index, sum(7, 1, 2, 4)));
+    assertEquals(ImmutableList.of(), positions(index, sum(9, 1, 2, 3)));
+  }
+
+  @Test
+  public void testMatches() {
+    final BlockIndex index = new BlockIndex(ImmutableList.<BlockSum>of(sum(7, 1, 2, 3), sum(8, 4, 5, 6)), 3);
+    assertEquals(8, index.getRsum(1));
+    assertTrue(index.matches(1, sum(8, 4, 5, 6)));
+    assertFalse(index.matches(1, sum(8, 4, 5, 7)));
+    assertFalse(index.matches(0, sum(8, 4, 5, 6)));
+  }
+
+  @Test
+  public void testRetain() {
+    final List<BlockSum> sums = ImmutableList.<BlockSum>of(sum(7, 1, 2, 3), sum(8, 1, 2, 3), sum(7, 1, 2, 3),
+        sum(7, 1, 2, 4), sum(7, 1, 2, 3));
+    final BlockIndex index = new BlockIndex(sums, 3).retain(new boolean[] { false, true, true, false, false });
+    assertEquals(5, index.getNumBlocks());
+    assertEquals(2, index.getNumLiveBlocks());
+    assertEquals(ImmutableList.of(2), positions(index, sum(7, 1, 2, 3)));
+    assertEquals(ImmutableList.of(1), positions(index, sum(8, 1, 2, 3)));
+    assertEquals(ImmutableList.of(), positions(index, sum(7, 1, 2, 4)));
+    assertFalse(index.isLive(0));
+    assertTrue(index.isLive(1));
+    // retired blocks are still accessible by position
+    assertEquals(7, index.getRsum(3));
+    assertTrue(index.matches(3, sum(7, 1, 2, 4)));
+    assertTrue(index.matches(4, sum(7, 1, 2, 3)));
+
+    final BlockIndex none = index.retain(new boolean[5]);
+    assertEquals(0, none.getNumLiveBlocks());
+    assertEquals(ImmutableList.of(), positions(none, sum(8, 1, 2, 3)));
+    assertTrue(none.matches(1, sum(8, 1, 2, 3)));
+    assertEquals(1, none.getPosition(none.findRetired(sum(8, 1, 2, 3))));
+    assertEquals(-1, index.findRetired(sum(8, 1, 2, 3)));
+  }
+
+  /**
+   * Compares lookups against a multimap for random sums with few distinct rsums, so that buckets hold colliding
+   * entries
+   */
+  @Test
+  public void testRandom() {
+    final Random random = new Random(42);
+    final List<BlockSum> sums = new ArrayList<>();
+    final ImmutableListMultimap.Builder<BlockSum, Integer> b = ImmutableListMultimap.builder();
+    for (int i = 0; i < 10000; i++) {
+      final BlockSum sum = sum(random.nextInt(64), 0, 0, random.nextInt(16));
+      sums.add(sum);
+      b.put(sum, i);
+    }
+    final ListMultimap<BlockSum, Integer> expected = b.build();
+    final BlockIndex index = new BlockIndex(sums, 3);
+    for (BlockSum sum : expected.keySet()) {
+      assertEquals(expected.get(sum), positions(index, sum));
+    }
+  }
+
+  private static List<Integer> positions(BlockIndex index, BlockSum sum) {
+    final List<Integer> positions = new ArrayList<>();
+    for (int slot = index.find(sum); slot != -1; slot = index.next(slot)) {
+      positions.add(index.getPosition(slot));
+    }
+    return positions;
+  }
+
+  private static BlockSum sum(int rsum, int... checksum) {
+    final byte[] bytes = new byte[checksum.length];
+    for (int i = 0; i < checksum.length; i++) {
+      bytes[i] = (byte) checksum[i];
+    }
+    return new ImmutableBlockSum(rsum, bytes);
+  }
+
+}
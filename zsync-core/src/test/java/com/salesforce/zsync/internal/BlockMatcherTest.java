@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.ZsyncMake;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.internal.util.RollingBuffer;
+import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+import com.salesforce.zsync.internal.util.ZeroPaddedReadableByteChannel;
+
+public class BlockMatcherTest {
+
+  private static final int BLOCK_SIZE = 256;
+
+  @Test
+  public void testSkipDoubleBlockMatcher() throws IOException {
+    this.testSkip(true, 0);
+  }
+
+  @Test
+  public void testSkipSingleBlockMatcher() throws IOException {
+    this.testSkip(false, 0);
+  }
+
+  /**
+   * With a single rsum byte, most offsets are rolling checksum candidates resolved by batches of strong checksums.
+   */
+  @Test
+  public void testSkipDoubleBlockMatcherCandidates() throws IOException {
+    this.testSkip(true, 1);
+  }
+
+  @Test
+  public void testSkipSingleBlockMatcherCandidates() throws IOException {
+    this.testSkip(false, 1);
+  }
+
+  /**
+   * Scans a seed with insertions with and without skipping over misses and checks that the matcher takes the same path.
+   */
+  private void testSkip(boolean seqMatches, int rsumBytes) throws IOException {
+    final Random random = new Random(7);
+    final byte[] data = new byte[1024 * BLOCK_SIZE + 99];
+    random.nextBytes(data);
+    Arrays.fill(data, 500 * BLOCK_SIZE, 520 * BLOCK_SIZE, (byte) 0);
+
+    final ByteArrayOutputStream seed = new ByteArrayOutputStream();
+    final byte[] noise = new byte[BLOCK_SIZE * 300];
+    random.nextBytes(noise);
+    seed.write(noise, 0, 5 * BLOCK_SIZE + 3);
+    seed.write(data, 0, 400 * BLOCK_SIZE);
+    seed.write(noise, 0, noise.length);
+    seed.write(data, 400 * BLOCK_SIZE + 11, data.length - 400 * BLOCK_SIZE - 11);
+
+    final Path targetFile = Files.createTempFile("target", null);
+    final Path seedFile = Files.createTempFile("seed", null);
+    final Path output = Files.createTempFile("output", null);
+    try {
+      Files.write(targetFile, data);
+      Files.write(seedFile, seed.toByteArray());
+      final ControlFile controlFile = controlFile(targetFile, seqMatches, rsumBytes);
+
+      final List<Long> steps = new ArrayList<>();
+      final long[] stats = new long[8];
+      final boolean[] matched = this.scan(controlFile, seedFile, output, false, steps, stats);
+      final List<Long> skippingSteps = new ArrayList<>();
+      final long[] skippingStats = new long[8];
+      final boolean[] skippingMatched = this.scan(controlFile, seedFile, output, true, skippingSteps, skippingStats);
+
+      assertTrue(steps.size() > 0);
+      assertEquals(steps, skippingSteps);
+      assertEquals(Arrays.toString(stats), Arrays.toString(skippingStats));
+      assertTrue(Arrays.equals(matched, skippingMatched));
+      int completed = 0;
+      for (boolean c : matched) {
+        completed += c ? 1 : 0;
+      }
+      assertEquals(completed, stats[4]);
+    } finally {
+      Files.deleteIfExists(targetFile);
+      Files.deleteIfExists(seedFile);
+      Files.deleteIfExists(output);
+    }
+  }
+
+  private boolean[] scan(ControlFile controlFile, Path seedFile, Path output, boolean skip, List<Long> steps,
+      long[] stats) throws IOException {
+    final OutputFileWriter writer = new OutputFileWriter(output, controlFile, listener());
+    try (final FileChannel channel = FileChannel.open(seedFile)) {
+      final BlockMatcher matcher = BlockMatcher.create(controlFile);
+      final int lastBlockSize = (int) (channel.size() % BLOCK_SIZE);
+      final RollingBuffer buffer = new RollingBuffer(new ZeroPaddedReadableByteChannel(channel,
+          lastBlockSize == 0 ? 0 : BLOCK_SIZE - lastBlockSize), matcher.getMatcherBlockSize(), 16 * matcher
+          .getMatcherBlockSize());
+      int bytes;
+      do {
+        if (skip) {
+          matcher.skip(writer, buffer, Integer.MAX_VALUE);
+        }
+        final long position = buffer.position();
+        bytes = matcher.match(writer, buffer);
+        if (bytes != 1) {
+          steps.add(position);
+        }
+      } while (buffer.advance(bytes));
+      stats[0] = matcher.getPrefilterLookups();
+      stats[1] = matcher.getPrefilterHits();
+      stats[2] = matcher.getPrefilterFalsePositives();
+      stats[3] = matcher.getBytesScanned();
+      stats[4] = matcher.getBlocksWritten();
+      stats[5] = matcher.getDuplicateBlocks();
+      // skipping counts each strong checksum it resolves once, like matching offset by offset
+      stats[6] = matcher.getStrongChecksums();
+      stats[7] = matcher.getChecksumMisses();
+      return completed(writer);
+    } finally {
+      try {
+        writer.close();
+      } catch (ChecksumValidationIOException e) {
+        // expected, since output is incomplete
+      } finally {
+        Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".part"));
+      }
+    }
+  }
+
+  /**
+   * Returns the control file for the given target, optionally truncating rsums to the given number of bytes
+   */
+  private static ControlFile controlFile(Path targetFile, boolean seqMatches, int rsumBytes) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(targetFile, out, new ZsyncMake.Options().setBlockSize(BLOCK_SIZE));
+    final ControlFile controlFile = ControlFile.read(new ByteArrayInputStream(out.toByteArray()));
+    final Header h = controlFile.getHeader();
+    final List<BlockSum> blockSums = new ArrayList<>();
+    for (BlockSum blockSum : controlFile.getBlockSums()) {
+      final int rsum = blockSum.getRsum();
+      blockSums.add(rsumBytes == 0 ? blockSum : new ImmutableBlockSum(rsum & ((1 << (8 * rsumBytes)) - 1), blockSum
+          .getChecksum()));
+    }
+    return new ControlFile(new Header(h.getVersion(), h.getFilename(), h.getMtime(), h.getBlocksize(), h.getLength(),
+        h.getChecksumBytes(), rsumBytes == 0 ? h.getRsumBytes() : rsumBytes, seqMatches, h.getUrl(), h.getSha1()),
+        blockSums);
+  }
+
+  private static boolean[] completed(OutputFileWriter writer) {
+    final boolean[] completed = new boolean[writer.getNumBlocks()];
+    Arrays.fill(completed, true);
+    for (ContentRange range : writer.getMissingRanges()) {
+      for (long i = range.first() / BLOCK_SIZE; i <= range.last() / BLOCK_SIZE; i++) {
+        completed[(int) i] = false;
+      }
+    }
+    return completed;
+  }
+
+  private static ResourceTransferListener<Path> listener() {
+    return new ResourceTransferListener<Path>() {
+      @Override
+      public void start(Path resource, long length) {}
+
+      @Override
+      public void transferred(long bytes) {}
+
+      @Override
+      public void close() {}
+    };
+  }
+
+}
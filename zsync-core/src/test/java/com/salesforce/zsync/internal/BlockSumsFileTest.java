@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.ZsyncMake;
+
+public class BlockSumsFileTest {
+
+  @Test
+  public void testReadWritten() throws IOException {
+    final Path file = Files.createTempFile("blocksums", null);
+    try {
+      final ControlFile controlFile = controlFile(file, 2048);
+      BlockSumsFile.write(file, controlFile);
+      final BlockSumsFile blockSumsFile = BlockSumsFile.read(file);
+      assertNotNull(blockSumsFile);
+      assertSumsEqual(controlFile.getBlockSums(), blockSumsFile.getBlockSums(controlFile));
+    } finally {
+      Files.deleteIfExists(BlockSumsFile.getPath(file));
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Block sums are not used once the file has been modified
+   */
+  @Test
+  public void testReadModified() throws IOException {
+    final Path file = Files.createTempFile("blocksums", null);
+    try {
+      BlockSumsFile.write(file, controlFile(file, 2048));
+      Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 2000));
+      assertNull(BlockSumsFile.read(file));
+    } finally {
+      Files.deleteIfExists(BlockSumsFile.getPath(file));
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testReadMissing() throws IOException {
+    final Path file = Files.createTempFile("blocksums", null);
+    try {
+      assertNull(BlockSumsFile.read(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Stored block sums are truncated to the lengths of another control file, unless it has a different block size
+   */
+  @Test
+  public void testGetBlockSumsTruncated() throws IOException {
+    final Path file = Files.createTempFile("blocksums", null);
+    try {
+      final ControlFile controlFile = controlFile(file, 2048);
+      BlockSumsFile.write(file, controlFile);
+      final BlockSumsFile blockSumsFile = BlockSumsFile.read(file);
+      final Header h = controlFile.getHeader();
+      final ControlFile truncated = new ControlFile(new Header(h.getVersion(), h.getFilename(), h.getMtime(),
+          h.getBlocksize(), h.getLength(), 3, 2, h.isSeqMatches(), h.getUrl(), h.getSha1()),
+          controlFile.getBlockSums());
+      final List<? extends BlockSum> sums = blockSumsFile.getBlockSums(truncated);
+      assertEquals(controlFile.getBlockSums().size(), sums.size());
+      for (int i = 0; i < sums.size(); i++) {
+        assertEquals(controlFile.getBlockSums().get(i).getRsum() & 0xffff, sums.get(i).getRsum());
+        assertEquals(3, sums.get(i).getChecksumLength());
+      }
+      assertNull(blockSumsFile.getBlockSums(controlFile(file, 1024)));
+    } finally {
+      Files.deleteIfExists(BlockSumsFile.getPath(file));
+      Files.delete(file);
+    }
+  }
+
+  private static ControlFile controlFile(Path file, int blockSize) throws IOException {
+    final byte[] data = new byte[10 * 2048 + 17];
+    new Random(5).nextBytes(data);
+    Files.write(file, data);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(file, out, new ZsyncMake.Options().setBlockSize(blockSize));
+    return ControlFile.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static void assertSumsEqual(List<? extends BlockSum> expected, List<? extends BlockSum> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getRsum(), actual.get(i).getRsum());
+      assertArrayEquals(expected.get(i).getChecksum(), actual.get(i).getChecksum());
+    }
+  }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class ControlFileTest {
+
+  private static final List<BlockSum> SUMS = ImmutableList.<BlockSum>of(new ImmutableBlockSum(7, new byte[] { 1, 2 }),
+      new ImmutableBlockSum(8, new byte[] { 3, 4 }));
+
+  @Test
+  public void testLookupsBuiltOnce() {
+    final ControlFile controlFile = new ControlFile(header("a"), SUMS);
+    final BlockIndex index = controlFile.getIndex();
+    assertEquals(2, index.getNumBlocks());
+    assertSame(index, controlFile.getIndex());
+    final BlockMatcher matcher = BlockMatcher.create(controlFile);
+    assertNotSame(matcher, BlockMatcher.create(controlFile));
+    assertSame(controlFile.getMatcher(), controlFile.getMatcher());
+  }
+
+  @Test
+  public void testWithBlockSumsOf() {
+    final ControlFile first = new ControlFile(header("a"), SUMS);
+    final ControlFile second = new ControlFile(header("b"), ImmutableList.copyOf(SUMS));
+    final ControlFile reused = second.withBlockSumsOf(first);
+    assertSame(second.getHeader(), reused.getHeader());
+    assertSame(first.getBlockSums(), reused.getBlockSums());
+    assertSame(first.getIndex(), reused.getIndex());
+    assertNotSame(first.getIndex(), second.getIndex());
+  }
+
+  private static Header header(String filename) {
+    return new Header("0.6.2", filename, new Date(0), 2048, 4000, 2, 4, false, "http://localhost/" + filename,
+        "da39a3ee5e6b4b0d3255bfef95601890afd80709");
+  }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.ZsyncMake;
+import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+
+public class InputFileSamplerTest {
+
+  private static final int BLOCK_SIZE = 256;
+
+  /**
+   * Probes input files holding all, half and none of the target at unaligned offsets
+   */
+  @Test
+  public void testSample() throws IOException {
+    final Random random = new Random(3);
+    final byte[] data = new byte[64 * BLOCK_SIZE];
+    random.nextBytes(data);
+    final byte[] noise = new byte[data.length + 7];
+    random.nextBytes(noise);
+
+    final Path targetFile = Files.createTempFile("target", null);
+    final Path output = Files.createTempFile("output", null);
+    try {
+      Files.write(targetFile, data);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new ZsyncMake().writeToStream(targetFile, out, new ZsyncMake.Options().setBlockSize(BLOCK_SIZE));
+      final ControlFile controlFile = ControlFile.read(new ByteArrayInputStream(out.toByteArray()));
+      final OutputFileWriter writer = new OutputFileWriter(output, controlFile, listener());
+      try {
+        final InputFileSampler sampler = new InputFileSampler(writer, controlFile);
+
+        final byte[] shifted = Arrays.copyOf(noise, noise.length);
+        System.arraycopy(data, 0, shifted, 7, data.length);
+        assertEquals(8, this.sample(sampler, shifted, 8));
+
+        final byte[] half = Arrays.copyOf(noise, noise.length);
+        System.arraycopy(data, 0, half, 7, data.length / 2);
+        assertEquals(4, this.sample(sampler, half, 8));
+
+        assertEquals(0, this.sample(sampler, noise, 8));
+        assertEquals(1, this.sample(sampler, Arrays.copyOfRange(data, 3 * BLOCK_SIZE, 4 * BLOCK_SIZE), 8));
+        assertEquals(0, this.sample(sampler, new byte[0], 8));
+      } finally {
+        writer.close();
+      }
+    } catch (ChecksumValidationIOException e) {
+      // expected, since output is incomplete
+    } finally {
+      Files.deleteIfExists(targetFile);
+      Files.deleteIfExists(output);
+      Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".part"));
+    }
+  }
+
+  private int sample(InputFileSampler sampler, byte[] content, int samples) throws IOException {
+    final Path inputFile = Files.createTempFile("input", null);
+    try {
+      Files.write(inputFile, content);
+      try (FileChannel channel = FileChannel.open(inputFile)) {
+        return sampler.sample(channel, samples);
+      }
+    } finally {
+      Files.delete(inputFile);
+    }
+  }
+
+  private static ResourceTransferListener<Path> listener() {
+    return new ResourceTransferListener<Path>() {
+      @Override
+      public void start(Path resource, long length) {}
+
+      @Override
+      public void transferred(long bytes) {}
+
+      @Override
+      public void close() {}
+    };
+  }
+
+}
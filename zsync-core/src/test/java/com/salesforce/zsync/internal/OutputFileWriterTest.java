@@ -0,0 +1,439 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.salesforce.zsync.ZsyncMake;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.internal.util.RollingBuffer;
+import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+import com.salesforce.zsync.internal.util.ZeroPaddedReadableByteChannel;
+
+public class OutputFileWriterTest {
+
+  private static final int BLOCK_SIZE = 256;
+
+  /**
+   * A larger part file left behind by an interrupted sync must not end up in the output file
+   */
+  @Test
+  public void testTruncatesStalePartFile() throws IOException {
+    final byte[] data = random(10 * BLOCK_SIZE + 17);
+    final Path output = Files.createTempFile("output", null);
+    final Path part = output.resolveSibling(output.getFileName() + ".part");
+    try {
+      Files.write(part, random(30 * BLOCK_SIZE));
+      final OutputFileWriter writer = new OutputFileWriter(output, controlFile(data, false), listener());
+      assertEquals(data.length, Files.size(part));
+      writer.receive(new ContentRange(0, data.length - 1), new ByteArrayInputStream(data));
+      writer.close();
+      assertArrayEquals(data, Files.readAllBytes(output));
+    } finally {
+      Files.deleteIfExists(output);
+      Files.deleteIfExists(part);
+    }
+  }
+
+  /**
+   * Threads writing every block in different orders write each block once between them, and bytes written are reported
+   * one notification at a time
+   */
+  @Test
+  public void testConcurrentWriteBlock() throws Exception {
+    final byte[] data = random(1000 * BLOCK_SIZE + 17);
+    final int numBlocks = 1001;
+    final Path output = Files.createTempFile("output", null);
+    final long[] transferred = new long[1];
+    final OutputFileWriter writer =
+        new OutputFileWriter(output, controlFile(data, false), new ResourceTransferListener<Path>() {
+          private boolean notifying;
+
+          @Override
+          public void start(Path resource, long length) {}
+
+          @Override
+          public void transferred(long bytes) {
+            assertFalse(this.notifying);
+            this.notifying = true;
+            transferred[0] += bytes;
+            this.notifying = false;
+          }
+
+          @Override
+          public void close() {}
+        });
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Integer>> results = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        final int seed = t;
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws IOException {
+            // a window over the whole zero padded file, so that every block is at its offset in the file
+            final RollingBuffer buffer = new RollingBuffer(new ZeroPaddedReadableByteChannel(Channels
+                .newChannel(new ByteArrayInputStream(data)), numBlocks * BLOCK_SIZE - data.length), numBlocks
+                * BLOCK_SIZE, 2 * numBlocks * BLOCK_SIZE);
+            final Random random = new Random(seed);
+            int written = 0;
+            for (int i = 0; i < 4 * numBlocks; i++) {
+              final int position = random.nextInt(numBlocks);
+              if (writer.writeBlock(position, buffer, position * BLOCK_SIZE)) {
+                written++;
+              }
+            }
+            for (int position = 0; position < numBlocks; position++) {
+              if (writer.writeBlock(position, buffer, position * BLOCK_SIZE)) {
+                written++;
+              }
+            }
+            return written;
+          }
+        }));
+      }
+      int written = 0;
+      for (Future<Integer> result : results) {
+        written += result.get();
+      }
+      assertEquals(numBlocks, written);
+      assertTrue(writer.isComplete());
+      assertEquals(data.length, transferred[0]);
+      writer.close();
+      assertArrayEquals(data, Files.readAllBytes(output));
+    } finally {
+      executor.shutdown();
+      Files.deleteIfExists(output);
+    }
+  }
+
+  /**
+   * Missing ranges are found as the iterator advances, leaving out blocks completed after it was created
+   */
+  @Test
+  public void testMissingRanges() throws IOException {
+    final byte[] data = random(10 * BLOCK_SIZE + 17);
+    final Path output = Files.createTempFile("output", null);
+    final OutputFileWriter writer = new OutputFileWriter(output, controlFile(data, false), listener());
+    try {
+      writer.receive(new ContentRange(2 * BLOCK_SIZE, 4 * BLOCK_SIZE - 1), new ByteArrayInputStream(data,
+          2 * BLOCK_SIZE, 2 * BLOCK_SIZE));
+      final Iterator<ContentRange> ranges = writer.missingRanges();
+      assertEquals(new ContentRange(0, 2 * BLOCK_SIZE - 1), ranges.next());
+      writer.receive(new ContentRange(6 * BLOCK_SIZE, 7 * BLOCK_SIZE - 1), new ByteArrayInputStream(data,
+          6 * BLOCK_SIZE, BLOCK_SIZE));
+      assertEquals(new ContentRange(4 * BLOCK_SIZE, 6 * BLOCK_SIZE - 1), ranges.next());
+      assertEquals(new ContentRange(7 * BLOCK_SIZE, data.length - 1), ranges.next());
+      assertFalse(ranges.hasNext());
+    } finally {
+      try {
+        writer.close();
+      } catch (ChecksumValidationIOException e) {
+        // expected, since output is incomplete
+      }
+      Files.deleteIfExists(output);
+      Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".part"));
+    }
+  }
+
+  /**
+   * Completed blocks are retired from the index even if every block of the target is unique, so that lookups get
+   * cheaper as the output file fills up
+   */
+  @Test
+  public void testRetiresUniqueBlocks() throws IOException {
+    for (boolean seqMatches : new boolean[] { false, true }) {
+      final byte[] data = random(40 * BLOCK_SIZE);
+      final Path output = Files.createTempFile("output", null);
+      final ControlFile controlFile = controlFile(data, seqMatches);
+      final OutputFileWriter writer = new OutputFileWriter(output, controlFile, listener());
+      try {
+        assertEquals(40, writer.getIndex().getNumLiveBlocks());
+        writer.receive(new ContentRange(0, 20 * BLOCK_SIZE - 1), new ByteArrayInputStream(data, 0, 20 * BLOCK_SIZE));
+        final BlockIndex index = writer.getIndex();
+        assertTrue(index.getNumLiveBlocks() <= 30);
+        assertEquals(-1, index.find(controlFile.getBlockSums().get(0)));
+        // retired blocks are still recognized, so that scans skip over their content
+        assertEquals(0, index.getPosition(index.findRetired(controlFile.getBlockSums().get(0))));
+        assertFalse(index.isLive(0));
+        assertTrue(index.isLive(20));
+      } finally {
+        try {
+          writer.close();
+        } catch (ChecksumValidationIOException e) {
+          // expected, since output is incomplete
+        }
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".part"));
+      }
+    }
+  }
+
+  /**
+   * Completed blocks within a received range are skipped rather than overwritten
+   */
+  @Test
+  public void testReceiveSkipsCompletedBlocks() throws IOException {
+    final byte[] data = random(10 * BLOCK_SIZE + 17);
+    final Path output = Files.createTempFile("output", null);
+    try {
+      final OutputFileWriter writer = new OutputFileWriter(output, controlFile(data, false), listener());
+      for (int position : new int[] { 3, 4, 7 }) {
+        final RollingBuffer buffer = new RollingBuffer(Channels.newChannel(new ByteArrayInputStream(data, position
+            * BLOCK_SIZE, BLOCK_SIZE)), BLOCK_SIZE, 2 * BLOCK_SIZE);
+        assertTrue(writer.writeBlock(position, buffer));
+      }
+      final byte[] received = data.clone();
+      Arrays.fill(received, 3 * BLOCK_SIZE, 5 * BLOCK_SIZE, (byte) 1);
+      Arrays.fill(received, 7 * BLOCK_SIZE, 8 * BLOCK_SIZE, (byte) 1);
+      writer.receive(new ContentRange(0, data.length - 1), new ByteArrayInputStream(received));
+      assertTrue(writer.isComplete());
+      writer.close();
+      assertArrayEquals(data, Files.readAllBytes(output));
+    } finally {
+      Files.deleteIfExists(output);
+    }
+  }
+
+  /**
+   * Blocks written out of order are hashed once the prefix before them is complete, and corrupt content within the
+   * prefix hashed in the background fails validation
+   */
+  @Test
+  public void testHashesWrittenPrefix() throws IOException {
+    final byte[] data = random(10 * BLOCK_SIZE + 17);
+    final byte[] corrupt = data.clone();
+    corrupt[5 * BLOCK_SIZE] ^= 1;
+    for (byte[] received : new byte[][] { data, corrupt }) {
+      final Path output = Files.createTempFile("output", null);
+      try {
+        final OutputFileWriter writer = new OutputFileWriter(output, controlFile(data, false), listener());
+        for (int position : new int[] { 1, 0, 2, 10, 6, 5, 4, 3, 9, 8, 7 }) {
+          final int first = position * BLOCK_SIZE;
+          final int length = Math.min(BLOCK_SIZE, data.length - first);
+          writer.receive(new ContentRange(first, first + length - 1),
+              new ByteArrayInputStream(received, first, length));
+        }
+        try {
+          writer.close();
+          assertArrayEquals(data, received);
+          assertArrayEquals(data, Files.readAllBytes(output));
+        } catch (ChecksumValidationIOException e) {
+          assertFalse(Arrays.equals(data, received));
+        }
+      } finally {
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".part"));
+      }
+    }
+  }
+
+  /**
+   * Block offsets past 2GB are computed without overflowing, in a sparse output file
+   */
+  @Test
+  public void testLargeFile() throws IOException {
+    final int blockSize = 1024 * 1024;
+    final long length = (1L << 31) + blockSize + 5;
+    final int numBlocks = (int) ((length + blockSize - 1) / blockSize);
+    final List<BlockSum> blockSums = new ArrayList<>(numBlocks);
+    for (int i = 0; i < numBlocks; i++) {
+      blockSums.add(new ImmutableBlockSum(i, new byte[] { (byte) i, (byte) (i >>> 8), 1, 2 }));
+    }
+    final ControlFile controlFile = new ControlFile(new Header("0.6.2", "large", new Date(), blockSize, length, 4, 4,
+        false, "large", "0000000000000000000000000000000000000000"), blockSums);
+    final Path output = Files.createTempFile("output", null);
+    final Path part = output.resolveSibling(output.getFileName() + ".part");
+    final OutputFileWriter writer = new OutputFileWriter(output, controlFile, listener());
+    try {
+      assertEquals(length, Files.size(part));
+      final byte[] block = random(blockSize);
+      final RollingBuffer buffer =
+          new RollingBuffer(Channels.newChannel(new ByteArrayInputStream(block)), blockSize, 2 * blockSize);
+      assertTrue(writer.writeBlock(2048, buffer));
+      assertEquals(ImmutableList.of(new ContentRange(0, 2048L * blockSize - 1), new ContentRange(2049L * blockSize,
+          length - 1)), writer.getMissingRanges());
+      try (FileChannel channel = FileChannel.open(part)) {
+        final ByteBuffer written = ByteBuffer.allocate(blockSize);
+        channel.read(written, 2048L * blockSize);
+        assertArrayEquals(block, written.array());
+      }
+    } finally {
+      try {
+        writer.close();
+      } catch (ChecksumValidationIOException e) {
+        // expected, since output is incomplete
+      }
+      Files.deleteIfExists(output);
+      Files.deleteIfExists(part);
+    }
+  }
+
+  @Test
+  public void testCompleteZeroBlocks() throws IOException {
+    final byte[] data = random(10 * BLOCK_SIZE + 17);
+    Arrays.fill(data, 2 * BLOCK_SIZE, 3 * BLOCK_SIZE, (byte) 0);
+    Arrays.fill(data, 5 * BLOCK_SIZE, 7 * BLOCK_SIZE, (byte) 0);
+    Arrays.fill(data, 10 * BLOCK_SIZE, data.length, (byte) 0);
+    final Path output = Files.createTempFile("output", null);
+    try {
+      final OutputFileWriter writer = new OutputFileWriter(output, controlFile(data, false), listener());
+      assertEquals(4, writer.completeZeroBlocks());
+      // mark every byte of the file, so that the bytes preallocation writes are told apart from those it leaves
+      final Path part = output.resolveSibling(output.getFileName() + ".part");
+      final byte[] marked = new byte[data.length];
+      Arrays.fill(marked, (byte) 0x55);
+      try (FileChannel channel = FileChannel.open(part, WRITE)) {
+        channel.write(ByteBuffer.wrap(marked), 0);
+      }
+      // preallocating the other blocks completes none of them
+      writer.preallocate();
+      final List<ContentRange> missing = ImmutableList.of(new ContentRange(0, 2 * BLOCK_SIZE - 1),
+          new ContentRange(3 * BLOCK_SIZE, 5 * BLOCK_SIZE - 1), new ContentRange(7 * BLOCK_SIZE, 10 * BLOCK_SIZE - 1));
+      assertEquals(missing, writer.getMissingRanges());
+      // zeros are written over the missing blocks only, while the zero blocks are left unwritten
+      final byte[] expected = marked.clone();
+      for (ContentRange range : missing) {
+        Arrays.fill(expected, (int) range.first(), (int) range.last() + 1, (byte) 0);
+      }
+      assertArrayEquals(expected, Files.readAllBytes(part));
+      // restore the content of the zero blocks the marks replaced
+      try (FileChannel channel = FileChannel.open(part, WRITE)) {
+        channel.write(ByteBuffer.wrap(data), 0);
+      }
+      receive(writer, data);
+      assertTrue(writer.isComplete());
+      writer.close();
+      assertArrayEquals(data, Files.readAllBytes(output));
+    } finally {
+      Files.deleteIfExists(output);
+    }
+  }
+
+  /**
+   * With sequential matches, single zero blocks are left to matching, since their checksums are too short on their own
+   */
+  @Test
+  public void testCompleteZeroBlocksSeqMatches() throws IOException {
+    final byte[] data = random(10 * BLOCK_SIZE);
+    Arrays.fill(data, 2 * BLOCK_SIZE, 3 * BLOCK_SIZE, (byte) 0);
+    Arrays.fill(data, 5 * BLOCK_SIZE, 7 * BLOCK_SIZE, (byte) 0);
+    final Path output = Files.createTempFile("output", null);
+    try {
+      final OutputFileWriter writer = new OutputFileWriter(output, controlFile(data, true), listener());
+      assertEquals(2, writer.completeZeroBlocks());
+      assertEquals(ImmutableList.of(new ContentRange(0, 5 * BLOCK_SIZE - 1), new ContentRange(7 * BLOCK_SIZE,
+          10 * BLOCK_SIZE - 1)), writer.getMissingRanges());
+      receive(writer, data);
+      writer.close();
+      assertArrayEquals(data, Files.readAllBytes(output));
+    } finally {
+      Files.deleteIfExists(output);
+    }
+  }
+
+  @Test
+  public void testCompleteZeroBlocksNone() throws IOException {
+    final byte[] data = random(3 * BLOCK_SIZE);
+    final Path output = Files.createTempFile("output", null);
+    try {
+      final OutputFileWriter writer = new OutputFileWriter(output, controlFile(data, false), listener());
+      assertEquals(0, writer.completeZeroBlocks());
+      assertFalse(writer.isComplete());
+      receive(writer, data);
+      writer.close();
+    } finally {
+      Files.deleteIfExists(output);
+    }
+  }
+
+  private static void receive(OutputFileWriter writer, byte[] data) throws IOException {
+    for (ContentRange range : writer.getMissingRanges()) {
+      writer.receive(range, new ByteArrayInputStream(data, (int) range.first(), (int) range.length()));
+    }
+  }
+
+  private static byte[] random(int length) {
+    final byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  private static ControlFile controlFile(byte[] data, boolean seqMatches) throws IOException {
+    final Path file = Files.createTempFile("target", null);
+    try {
+      Files.write(file, data);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new ZsyncMake().writeToStream(file, out, new ZsyncMake.Options().setBlockSize(BLOCK_SIZE));
+      final ControlFile controlFile = ControlFile.read(new ByteArrayInputStream(out.toByteArray()));
+      final Header h = controlFile.getHeader();
+      return new ControlFile(new Header(h.getVersion(), h.getFilename(), h.getMtime(), h.getBlocksize(), h.getLength(),
+          h.getChecksumBytes(), h.getRsumBytes(), seqMatches, h.getUrl(), h.getSha1()), controlFile.getBlockSums());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static ResourceTransferListener<Path> listener() {
+    return new ResourceTransferListener<Path>() {
+      @Override
+      public void start(Path resource, long length) {}
+
+      @Override
+      public void transferred(long bytes) {}
+
+      @Override
+      public void close() {}
+    };
+  }
+
+}
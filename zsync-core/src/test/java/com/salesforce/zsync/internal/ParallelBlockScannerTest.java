@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.ZsyncMake;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.internal.util.RollingBuffer;
+import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+import com.salesforce.zsync.internal.util.ZeroPaddedReadableByteChannel;
+
+public class ParallelBlockScannerTest {
+
+  private static final int BLOCK_SIZE = 512;
+  private static final int PARALLELISM = 8;
+
+  @Test
+  public void testDoubleBlockMatcher() throws IOException {
+    this.test(true, false);
+  }
+
+  @Test
+  public void testSingleBlockMatcher() throws IOException {
+    this.test(false, false);
+  }
+
+  @Test
+  public void testDoubleBlockMatcherAlignedFirst() throws IOException {
+    this.test(true, true);
+  }
+
+  @Test
+  public void testSingleBlockMatcherAlignedFirst() throws IOException {
+    this.test(false, true);
+  }
+
+  /**
+   * Scans a seed with insertions and long runs of repeated content. The target contains a copy of the seed shifted by
+   * part of a block right after the first segment boundary, so that the second segment, starting fresh, matches the
+   * shifted copy and skips blocks the sequential scan matches. If requested, blocks at aligned offsets are matched
+   * first, which lets the parallel scan skip the unchanged prefix of the seed.
+   */
+  private void test(boolean seqMatches, boolean alignedFirst) throws IOException {
+    final Random random = new Random(42);
+    final byte[] data = new byte[256 * BLOCK_SIZE + 123];
+    random.nextBytes(data);
+    Arrays.fill(data, 60 * BLOCK_SIZE, 90 * BLOCK_SIZE, (byte) 0);
+    Arrays.fill(data, 100 * BLOCK_SIZE + 7, 140 * BLOCK_SIZE, (byte) 1);
+
+    final ByteArrayOutputStream seed = new ByteArrayOutputStream();
+    seed.write(data, 0, 150 * BLOCK_SIZE);
+    seed.write(new byte[3 * BLOCK_SIZE + 17], 0, 3 * BLOCK_SIZE + 17);
+    seed.write(data, 150 * BLOCK_SIZE, data.length - 150 * BLOCK_SIZE);
+
+    final byte[] target = data.clone();
+    final long boundary = seed.size() / PARALLELISM;
+    final int shifted = (int) boundary + 10;
+    System.arraycopy(data, shifted, target, 200 * BLOCK_SIZE, 4 * BLOCK_SIZE);
+
+    final Path targetFile = Files.createTempFile("target", null);
+    final Path seedFile = Files.createTempFile("seed", null);
+    final Path sequentialOutput = Files.createTempFile("sequential", null);
+    final Path parallelOutput = Files.createTempFile("parallel", null);
+    try {
+      Files.write(targetFile, target);
+      Files.write(seedFile, seed.toByteArray());
+      final ControlFile controlFile = controlFile(targetFile, seqMatches);
+
+      final boolean[] sequential = this.scanSequential(controlFile, seedFile, sequentialOutput);
+      final long[] read = new long[1];
+      final boolean[] parallel = this.scanParallel(controlFile, seedFile, parallelOutput, alignedFirst, read);
+      assertEquals(Files.size(seedFile), read[0]);
+      int matched = 0;
+      for (int i = 0; i < sequential.length; i++) {
+        if (sequential[i]) {
+          assertTrue("block " + i + " not matched", parallel[i]);
+          matched++;
+        }
+      }
+      assertTrue(matched > 0);
+    } finally {
+      Files.deleteIfExists(targetFile);
+      Files.deleteIfExists(seedFile);
+      Files.deleteIfExists(sequentialOutput);
+      Files.deleteIfExists(parallelOutput);
+    }
+  }
+
+  private boolean[] scanSequential(ControlFile controlFile, Path seedFile, Path output) throws IOException {
+    final OutputFileWriter writer = new OutputFileWriter(output, controlFile, listener(new long[1]));
+    try (final FileChannel channel = FileChannel.open(seedFile)) {
+      final BlockMatcher matcher = BlockMatcher.create(controlFile);
+      final int padding = padding(channel.size());
+      final ReadableByteChannel c = padding == 0 ? channel : new ZeroPaddedReadableByteChannel(channel, padding);
+      final RollingBuffer buffer = new RollingBuffer(c, matcher.getMatcherBlockSize(), 16 * matcher
+          .getMatcherBlockSize());
+      int bytes;
+      do {
+        bytes = matcher.match(writer, buffer);
+      } while (buffer.advance(bytes));
+      return completed(writer);
+    } finally {
+      close(writer, output);
+    }
+  }
+
+  private boolean[] scanParallel(ControlFile controlFile, Path seedFile, Path output, boolean alignedFirst,
+      long[] read) throws IOException {
+    final OutputFileWriter writer = new OutputFileWriter(output, controlFile, listener(new long[1]));
+    final ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+    try (final FileChannel channel = FileChannel.open(seedFile)) {
+      final ParallelBlockScanner scanner =
+          new ParallelBlockScanner(pool, BlockMatcher.create(controlFile), 4 * BLOCK_SIZE, true);
+      final long size = channel.size();
+      if (alignedFirst) {
+        final AlignedBlockScanner aligned = new AlignedBlockScanner(controlFile);
+        aligned.scan(writer, channel, size, padding(size), BLOCK_SIZE, listener(read));
+        assertEquals(149 * BLOCK_SIZE, aligned.skipMatched(BLOCK_SIZE));
+        assertEquals(BLOCK_SIZE + 1, aligned.skipMatched(BLOCK_SIZE + 1));
+        scanner.scan(writer, channel, size, padding(size), aligned, null);
+      } else {
+        scanner.scan(writer, channel, size, padding(size), listener(read));
+      }
+      return completed(writer);
+    } finally {
+      pool.shutdown();
+      close(writer, output);
+    }
+  }
+
+  private static ControlFile controlFile(Path targetFile, boolean seqMatches) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(targetFile, out, new ZsyncMake.Options().setBlockSize(BLOCK_SIZE));
+    final ControlFile controlFile = ControlFile.read(new ByteArrayInputStream(out.toByteArray()));
+    final Header h = controlFile.getHeader();
+    assertTrue(h.isSeqMatches());
+    return seqMatches ? controlFile : new ControlFile(new Header(h.getVersion(), h.getFilename(), h.getMtime(),
+        h.getBlocksize(), h.getLength(), h.getChecksumBytes(), h.getRsumBytes(), false, h.getUrl(), h.getSha1()),
+        controlFile.getBlockSums());
+  }
+
+  private static int padding(long size) {
+    final int lastBlockSize = (int) (size % BLOCK_SIZE);
+    return lastBlockSize == 0 ? 0 : BLOCK_SIZE - lastBlockSize;
+  }
+
+  private static boolean[] completed(OutputFileWriter writer) {
+    final boolean[] completed = new boolean[writer.getNumBlocks()];
+    Arrays.fill(completed, true);
+    final List<ContentRange> missing = writer.getMissingRanges();
+    for (ContentRange range : missing) {
+      for (long i = range.first() / BLOCK_SIZE; i <= range.last() / BLOCK_SIZE; i++) {
+        completed[(int) i] = false;
+      }
+    }
+    return completed;
+  }
+
+  private static void close(OutputFileWriter writer, Path output) throws IOException {
+    try {
+      writer.close();
+    } catch (ChecksumValidationIOException e) {
+      // expected, since output is incomplete
+    } finally {
+      Files.deleteIfExists(output.resolveSibling(output.getFileName() + ".part"));
+    }
+  }
+
+  private static ResourceTransferListener<Path> listener(final long[] transferred) {
+    return new ResourceTransferListener<Path>() {
+      @Override
+      public void start(Path resource, long length) {}
+
+      @Override
+      public void transferred(long bytes) {
+        transferred[0] += bytes;
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.internal.util.RollingBuffer;
+import com.salesforce.zsync.internal.util.ZsyncUtilTest;
+
+public class RsumTest {
+
+  @Test
+  public void testInit() throws IOException {
+    final Random random = new Random(3);
+    for (int blockSize = 1; blockSize <= 4096; blockSize <<= 1) {
+      final byte[] data = new byte[4 * blockSize + random.nextInt(100)];
+      random.nextBytes(data);
+      final RollingBuffer buffer =
+          new RollingBuffer(Channels.newChannel(new ByteArrayInputStream(data)), 2 * blockSize, 4 * blockSize);
+      final Rsum rsum = new Rsum(4, blockSize);
+      for (int i = 0; i < 10; i++) {
+        final int offset = random.nextInt(blockSize + 1);
+        rsum.init(buffer, offset, blockSize);
+        assertEquals(ZsyncUtilTest.referenceRsum(data, offset, blockSize), rsum.toInt());
+      }
+    }
+  }
+
+  /**
+   * Tests that rolling the checksum over random data yields the same sums as computing them from scratch
+   */
+  @Test
+  public void testUpdate() throws IOException {
+    final Random random = new Random(5);
+    final int blockSize = 64;
+    final byte[] data = new byte[20 * blockSize];
+    random.nextBytes(data);
+    final RollingBuffer buffer =
+        new RollingBuffer(Channels.newChannel(new ByteArrayInputStream(data)), blockSize, 4 * blockSize);
+    final Rsum rolling = new Rsum(4, blockSize);
+    final Rsum init = new Rsum(4, blockSize);
+    rolling.init(buffer);
+    for (int i = 1; i + blockSize <= data.length; i++) {
+      final byte out = buffer.get(0);
+      buffer.advance(1);
+      rolling.update(out, buffer.get(blockSize - 1));
+      init.init(buffer);
+      assertEquals(init.toInt(), rolling.toInt());
+      assertEquals(ZsyncUtilTest.referenceRsum(data, i, blockSize), rolling.toInt());
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BitHashTest {
+
+  @Test
+  public void testNoFalseNegatives() {
+    final Random random = new Random(42);
+    final int[] ints = new int[1000];
+    final long[] longs = new long[1000];
+    final BitHash bitHash = new BitHash(2000);
+    for (int i = 0; i < ints.length; i++) {
+      bitHash.add(ints[i] = random.nextInt());
+      bitHash.add(longs[i] = random.nextLong());
+    }
+    for (int i = 0; i < ints.length; i++) {
+      assertTrue(bitHash.mightContain(ints[i]));
+      assertTrue(bitHash.mightContain(longs[i]));
+    }
+  }
+
+  /**
+   * Asserts that the false positive rate for sequential keys stays close to the expected rate for one bit per key
+   */
+  @Test
+  public void testFalsePositiveRate() {
+    final int n = 10000;
+    final BitHash bitHash = new BitHash(n);
+    for (int i = 0; i < n; i++) {
+      bitHash.add(i);
+    }
+    int falsePositives = 0;
+    for (int i = n; i < 11 * n; i++) {
+      if (bitHash.mightContain(i)) {
+        falsePositives++;
+      }
+    }
+    final double expected = (double) n / bitHash.size();
+    assertTrue("false positive rate " + falsePositives / (10d * n), falsePositives / (10d * n) < 2 * expected);
+  }
+
+  @Test
+  public void testSize() {
+    assertEquals(64, new BitHash(0).size());
+    assertEquals(64, new BitHash(4).size());
+    assertEquals(128, new BitHash(5).size());
+    assertEquals(1 << 14, new BitHash(1000, 16).size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeExpectedSize() {
+    new BitHash(-1);
+  }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+  @Test
+  public void testAddContains() {
+    final LongHashSet set = new LongHashSet(3);
+    assertTrue(set.add(1));
+    assertTrue(set.add(-1));
+    assertFalse(set.add(1));
+    assertTrue(set.contains(1));
+    assertTrue(set.contains(-1));
+    assertFalse(set.contains(2));
+    assertEquals(2, set.size());
+  }
+
+  @Test
+  public void testZero() {
+    final LongHashSet set = new LongHashSet(1);
+    assertFalse(set.contains(0));
+    assertTrue(set.add(0));
+    assertFalse(set.add(0));
+    assertTrue(set.contains(0));
+    assertEquals(1, set.size());
+  }
+
+  @Test
+  public void testEmpty() {
+    final LongHashSet set = new LongHashSet(0);
+    assertFalse(set.contains(0));
+    assertFalse(set.contains(42));
+    assertEquals(0, set.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeExpectedSize() {
+    new LongHashSet(-1);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCapacityExceeded() {
+    final LongHashSet set = new LongHashSet(1);
+    for (int i = 1; i < 10; i++) {
+      set.add(i);
+    }
+  }
+
+  /**
+   * Compares membership against a boxed reference set for random keys
+   */
+  @Test
+  public void testRandom() {
+    final Random random = new Random(42);
+    final Set<Long> expected = new HashSet<>();
+    final LongHashSet set = new LongHashSet(10000);
+    for (int i = 0; i < 10000; i++) {
+      final long key = random.nextLong() & 0xffff;
+      assertEquals(expected.add(key), set.add(key));
+    }
+    for (int i = 0; i < 100000; i++) {
+      final long key = random.nextLong() & 0xffff;
+      assertEquals(expected.contains(key), set.contains(key));
+    }
+    assertEquals(expected.size(), set.size());
+  }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MD4DigestTest {
+
+  /**
+   * Test suite of RFC 1320
+   */
+  @Test
+  public void testRfcSuite() throws IOException {
+    assertDigest("31d6cfe0d16ae931b73c59d7e0c089c0", "");
+    assertDigest("bde52cb31de33e46245e05fbdbd6fb24", "a");
+    assertDigest("a448017aaf21d8525fc10ae87aa6729d", "abc");
+    assertDigest("d9130a8164549fe818874806e1c7014b", "message digest");
+    assertDigest("d79e1c308aa5bbcdeea8ed63df412da9", "abcdefghijklmnopqrstuvwxyz");
+    assertDigest("043f8582f241db351ce627e153e7f0e4",
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789");
+    assertDigest("e33b4ddc9c38f2199c3e7b164fcc0536",
+        "12345678901234567890123456789012345678901234567890123456789012345678901234567890");
+  }
+
+  /**
+   * Compares ranges of all lengths around the padding boundaries with the message digest implementation
+   */
+  @Test
+  public void testMatchesMessageDigest() {
+    final Random random = new Random(42);
+    final byte[] data = new byte[300];
+    random.nextBytes(data);
+    final MessageDigest expected = ZsyncUtil.newMD4();
+    final MD4Digest digest = new MD4Digest();
+    final byte[] actual = new byte[MD4Digest.DIGEST_LENGTH];
+    for (int length = 0; length <= 200; length++) {
+      final int offset = random.nextInt(data.length - length + 1);
+      expected.update(data, offset, length);
+      assertEquals(MD4Digest.DIGEST_LENGTH, digest.digest(data, offset, length, actual, 0, actual.length));
+      assertArrayEquals("length " + length, expected.digest(), actual);
+    }
+  }
+
+  /**
+   * Compares ranges hashed together with ranges hashed one at a time, for lengths around the padding boundaries
+   */
+  @Test
+  public void testLanes() {
+    final Random random = new Random(42);
+    final byte[] data = new byte[1000];
+    random.nextBytes(data);
+    final MD4Digest digest = new MD4Digest();
+    final int[] offsets = new int[2 * MD4Digest.LANES + 1];
+    for (int length : new int[] { 0, 1, 55, 56, 63, 64, 65, 119, 120, 512 }) {
+      for (int count = 0; count <= offsets.length; count++) {
+        for (int k = 0; k < count; k++) {
+          offsets[k] = random.nextInt(data.length - length + 1);
+        }
+        final byte[] actual = new byte[count * 6];
+        digest.digest(data, offsets, count, length, actual, 6);
+        for (int k = 0; k < count; k++) {
+          final byte[] expected = new byte[6];
+          digest.digest(data, offsets[k], length, expected, 0, expected.length);
+          assertArrayEquals("length " + length + ", range " + k, expected, Arrays.copyOfRange(actual, 6 * k,
+              6 * k + 6));
+        }
+        // ranges from the middle on are written to the same regions
+        final int first = count / 2;
+        final byte[] tail = new byte[count * 6];
+        digest.digest(data, offsets, first, count, length, tail, 6);
+        assertArrayEquals(Arrays.copyOfRange(actual, 6 * first, 6 * count), Arrays.copyOfRange(tail, 6 * first,
+            6 * count));
+      }
+    }
+  }
+
+  @Test
+  public void testTruncated() {
+    final byte[] data = "message digest".getBytes();
+    final byte[] output = new byte[8];
+    Arrays.fill(output, (byte) -1);
+    assertEquals(5, new MD4Digest().digest(data, 0, data.length, output, 2, 5));
+    assertArrayEquals(new byte[] { -1, -1, (byte) 0xd9, 0x13, 0x0a, (byte) 0x81, 0x64, -1 }, output);
+  }
+
+  @Test
+  public void testReadableByteBuffer() throws IOException {
+    final Random random = new Random(42);
+    final byte[] data = new byte[100];
+    random.nextBytes(data);
+    final RollingBuffer buffer = new RollingBuffer(Channels.newChannel(new ByteArrayInputStream(data)), 40, 80);
+    buffer.advance(30);
+    final MD4Digest digest = new MD4Digest();
+    final byte[] expected = new byte[MD4Digest.DIGEST_LENGTH];
+    final byte[] actual = new byte[MD4Digest.DIGEST_LENGTH];
+    digest.digest(data, 35, 20, expected, 0, expected.length);
+    digest.digest(buffer, 5, 20, actual, 0, actual.length);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testOutputTooLong() {
+    new MD4Digest().digest(new byte[1], 0, 1, new byte[32], 0, 17);
+  }
+
+  private static void assertDigest(String expected, String message) {
+    final byte[] bytes = message.getBytes();
+    final byte[] output = new byte[MD4Digest.DIGEST_LENGTH];
+    new MD4Digest().digest(bytes, 0, bytes.length, output, 0, output.length);
+    assertEquals(expected, ZsyncUtil.toHexString(ByteBuffer.wrap(output)));
+  }
+
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.nio.channels.Channels.newChannel;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MappedRollingBufferTest {
+
+  /**
+   * Compares windows and writes against a {@link RollingBuffer} over a zero padded channel for random advances, with a
+   * map size small enough to force frequent remapping, both for mapped regions and regions read into a heap buffer
+   */
+  @Test
+  public void testEquivalentToPaddedRollingBuffer() throws IOException {
+    final Random random = new Random(42);
+    final byte[] data = new byte[10000];
+    random.nextBytes(data);
+    final Path file = Files.createTempFile("mapped", null);
+    try {
+      Files.write(file, data);
+      for (int i = 0; i < 6; i++) {
+        final int start = new int[] { 0, 1, 4321 }[i / 2];
+        try (FileChannel channel = FileChannel.open(file)) {
+          final long[] transferred = new long[1];
+          final MappedRollingBuffer mapped =
+              new MappedRollingBuffer(channel, start, data.length, 37, 64, 100, i % 2 == 0, listener(transferred));
+          final RollingBuffer expected = new RollingBuffer(new ZeroPaddedReadableByteChannel(
+              newChannel(new ByteArrayInputStream(data, start, data.length - start)), 37), 64, 128);
+          boolean advanced;
+          do {
+            assertWindowEquals(expected, mapped);
+            final int bytes = random.nextBoolean() ? 1 : random.nextInt(65);
+            advanced = expected.advance(bytes);
+            assertEquals(advanced, mapped.advance(bytes));
+          } while (advanced);
+          assertEquals(data.length - start, transferred[0]);
+        }
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Bytes are reported as the window reaches them rather than when they are mapped, so a scan stopping early reports
+   * only a step past its window
+   */
+  @Test
+  public void testReportsBytesReached() throws IOException {
+    final int size = 3 * MappedRollingBuffer.REPORT_SIZE;
+    final Path file = Files.createTempFile("mapped", null);
+    try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] { 1 }), size - 1);
+      final long[] transferred = new long[1];
+      final MappedRollingBuffer buffer = new MappedRollingBuffer(channel, 0, size, 0, 1024, listener(transferred));
+      assertEquals(1024 + MappedRollingBuffer.REPORT_SIZE, transferred[0]);
+      while (buffer.position() < MappedRollingBuffer.REPORT_SIZE) {
+        assertTrue(buffer.advance(1024));
+      }
+      assertEquals(1024 + MappedRollingBuffer.REPORT_SIZE, transferred[0]);
+      assertTrue(buffer.advance(1));
+      assertEquals(MappedRollingBuffer.REPORT_SIZE + 1025 + MappedRollingBuffer.REPORT_SIZE, transferred[0]);
+      while (buffer.advance(1024)) {
+      }
+      assertEquals(size, transferred[0]);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testSmallerThanWindow() throws IOException {
+    final Path file = Files.createTempFile("mapped", null);
+    try {
+      Files.write(file, new byte[] { 1, 2, 3 });
+      try (FileChannel channel = FileChannel.open(file)) {
+        final MappedRollingBuffer buffer = new MappedRollingBuffer(channel, 0, 3, 5, 8, listener(new long[1]));
+        assertArrayEquals(new byte[] { 1, 2, 3, 0, 0, 0, 0, 0 }, window(buffer));
+        assertFalse(buffer.advance(1));
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInsufficientBytes() throws IOException {
+    final Path file = Files.createTempFile("mapped", null);
+    try (FileChannel channel = FileChannel.open(file)) {
+      new MappedRollingBuffer(channel, 0, 0, 7, 8, listener(new long[1]));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Rolls over the 2GB boundary of a sparse file
+   */
+  @Test
+  public void testLargeFile() throws IOException {
+    final long size = (1L << 31) + 100;
+    final Path file = Files.createTempFile("mapped", null);
+    try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), (1L << 31) - 2);
+      channel.write(ByteBuffer.wrap(new byte[] { 5 }), size - 1);
+      final MappedRollingBuffer buffer =
+          new MappedRollingBuffer(channel, (1L << 31) - 10, size, 4, 8, 16, listener(new long[1]));
+      assertTrue(buffer.advance(4));
+      assertArrayEquals(new byte[] { 0, 0, 0, 0, 1, 2, 3, 4 }, window(buffer));
+      assertTrue(buffer.advance(8));
+      assertTrue(buffer.advance(8));
+      assertEquals(0, buffer.get(0));
+      for (int i = 0; i < 10; i++) {
+        assertTrue(buffer.advance(8));
+      }
+      assertTrue(buffer.advance(6));
+      assertArrayEquals(new byte[] { 0, 0, 0, 5, 0, 0, 0, 0 }, window(buffer));
+      assertFalse(buffer.advance(1));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static void assertWindowEquals(ReadableByteBuffer expected, ReadableByteBuffer actual) throws IOException {
+    assertArrayEquals(window(expected), window(actual));
+    final int offset = expected.length() / 3;
+    final ByteArrayOutputStream e = new ByteArrayOutputStream();
+    expected.write(newChannel(e), offset, expected.length() - offset);
+    final ByteArrayOutputStream a = new ByteArrayOutputStream();
+    actual.write(newChannel(a), offset, actual.length() - offset);
+    assertArrayEquals(e.toByteArray(), a.toByteArray());
+  }
+
+  private static byte[] window(ReadableByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(i);
+    }
+    return bytes;
+  }
+
+  private static TransferListener listener(final long[] transferred) {
+    return new TransferListener() {
+      @Override
+      public void transferred(long bytes) {
+        transferred[0] += bytes;
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+}
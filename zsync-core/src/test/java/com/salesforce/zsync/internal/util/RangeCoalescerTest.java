@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.salesforce.zsync.http.ContentRange;
+
+public class RangeCoalescerTest {
+
+  @Test
+  public void testMaxGap() {
+    assertEquals(RangeCoalescer.PART_OVERHEAD + RangeCoalescer.REQUEST_OVERHEAD / 100,
+        new RangeCoalescer(0, 0).getMaxGap());
+    // 50ms at 10MB/s leave 512KB unused per request, about 5KB per range
+    assertEquals(RangeCoalescer.PART_OVERHEAD + (RangeCoalescer.REQUEST_OVERHEAD + 512 * 1024) / 100,
+        new RangeCoalescer(50, 10 * 1024 * 1024).getMaxGap());
+  }
+
+  @Test
+  public void testCoalesce() {
+    final RangeCoalescer coalescer = new RangeCoalescer(50, 10 * 1024 * 1024);
+    final long gap = coalescer.getMaxGap();
+    final List<ContentRange> ranges =
+        ImmutableList.of(new ContentRange(0, 99), new ContentRange(100 + gap, 199 + gap), new ContentRange(
+            201 + 2 * gap, 299 + 2 * gap), new ContentRange(300 + 3 * gap, 399 + 3 * gap));
+    assertEquals(ImmutableList.of(new ContentRange(0, 199 + gap), new ContentRange(201 + 2 * gap, 399 + 3 * gap)),
+        ImmutableList.copyOf(coalescer.coalesce(ranges.iterator())));
+  }
+
+  /**
+   * Ranges are taken from the given iterator one merged range at a time, plus the range that ended it
+   */
+  @Test
+  public void testCoalesceLazily() {
+    final Iterator<ContentRange> ranges =
+        ImmutableList.of(new ContentRange(0, 99), new ContentRange(100000, 100099), new ContentRange(200000, 200099))
+            .iterator();
+    final Iterator<ContentRange> coalesced = new RangeCoalescer(0, 0).coalesce(ranges);
+    assertEquals(new ContentRange(0, 99), coalesced.next());
+    assertEquals(new ContentRange(200000, 200099), ranges.next());
+  }
+
+  @Test
+  public void testCoalesceEmpty() {
+    assertEquals(ImmutableList.of(), ImmutableList.copyOf(new RangeCoalescer(50, 1024).coalesce(ImmutableList
+        .<ContentRange>of().iterator())));
+  }
+
+}
@@ -26,6 +26,8 @@
 package com.salesforce.zsync.internal.util;
 
 import static java.nio.channels.Channels.newChannel;
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.copyOfRange;
 import static java.util.Arrays.fill;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -293,6 +295,31 @@ public class RollingBufferTest {
     b.write(Channels.newChannel(new ByteArrayOutputStream()), 0, 2);
   }
 
+  /**
+   * Tests that copy returns bytes beyond the window, reading more once less than half the buffer remains, and that
+   * position follows advances
+   */
+  @Test
+  public void testCopy() throws IOException {
+    final byte[] data = new byte[20];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    final RollingBuffer b = new RollingBuffer(newChannel(new ByteArrayInputStream(data)), 4, 16);
+    assertEquals(0, b.position());
+    final byte[] dst = new byte[32];
+    assertEquals(6, b.copy(1, dst, 2, 6));
+    assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, copyOfRange(dst, 2, 8));
+    assertTrue(b.advance(3));
+    assertTrue(b.advance(4));
+    assertEquals(7, b.position());
+    assertEquals(9, b.copy(0, dst, 0, dst.length));
+    assertArrayEquals(copyOfRange(data, 7, 16), copyOf(dst, 9));
+    assertTrue(b.advance(4));
+    assertEquals(9, b.copy(0, dst, 0, dst.length));
+    assertArrayEquals(copyOfRange(data, 11, 20), copyOf(dst, 9));
+  }
+
   private static byte[] read(ReadableByteBuffer b) throws IOException {
     final ByteArrayOutputStream bos = new ByteArrayOutputStream();
     final WritableByteChannel o = Channels.newChannel(bos);
@@ -115,6 +115,20 @@ public class ZeroPaddedReadableByteChannelTest {
     assertEquals(-1, channel.read(buffer));
   }
 
+  /**
+   * Tests that a channel padded to the block size is followed by zeros up to the next block boundary,
+   * or up to the minimum length if it is shorter.
+   */
+  @Test
+  public void testPadToBlockSize() throws IOException {
+    assertEquals(8, readAll(ZeroPaddedReadableByteChannel.padToBlockSize(
+        newChannel(new ByteArrayInputStream(new byte[5])), 4, 2)));
+    assertEquals(8, readAll(ZeroPaddedReadableByteChannel.padToBlockSize(
+        newChannel(new ByteArrayInputStream(new byte[8])), 4, 2)));
+    assertEquals(6, readAll(ZeroPaddedReadableByteChannel.padToBlockSize(
+        newChannel(new ByteArrayInputStream(new byte[1])), 4, 6)));
+  }
+
   /**
    * Tests that the constructor throws an illegal argument exception if a negative number of zeros
    * is specified
@@ -146,6 +160,15 @@ public class ZeroPaddedReadableByteChannelTest {
     assertFalse(channel.isOpen());
   }
 
+  private static int readAll(ReadableByteChannel channel) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(3);
+    int length = 0;
+    for (int read; (read = channel.read(buffer)) != -1; buffer.clear()) {
+      length += read;
+    }
+    return length;
+  }
+
   /**
    * Test factor method: creates a padded channel off of a byte array with the given number of
    * zeros.
@@ -25,19 +25,29 @@
  */
 package com.salesforce.zsync.internal.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import com.google.common.io.ByteStreams;
 
 import com.salesforce.zsync.internal.util.ZsyncUtil;
 
@@ -73,6 +83,42 @@ public class ZsyncUtilTest {
     assertEquals((short) 1, ZsyncUtil.unsigned((byte) 1));
   }
 
+  /**
+   * Tests that the rolling checksum is bit-identical to summing byte by byte for random ranges, including ranges of
+   * 0xff bytes long enough for both sums to overflow
+   */
+  @Test
+  public void testComputeRsum() {
+    final Random random = new Random(1);
+    final byte[] bytes = new byte[10000];
+    for (int i = 0; i < 1000; i++) {
+      if (i % 100 == 0) {
+        Arrays.fill(bytes, (byte) 0xff);
+      } else {
+        random.nextBytes(bytes);
+      }
+      final int offset = random.nextInt(100);
+      final int length = random.nextInt(bytes.length - offset + 1);
+      assertEquals(referenceRsum(bytes, offset, length), ZsyncUtil.computeRsum(bytes, offset, length));
+    }
+    assertEquals(referenceRsum(bytes, 0, bytes.length), ZsyncUtil.computeRsum(bytes));
+    assertEquals(0, ZsyncUtil.computeRsum(new byte[0]));
+  }
+
+  /**
+   * Computes the rolling checksum one byte at a time
+   */
+  public static int referenceRsum(byte[] bytes, int offset, int length) {
+    short a = 0;
+    short b = 0;
+    for (int i = 0, l = length; i < length; i++, l--) {
+      final short val = ZsyncUtil.unsigned(bytes[offset + i]);
+      a += val;
+      b += l * val;
+    }
+    return ZsyncUtil.toInt(a, b);
+  }
+
   @Test
   public void testComputeSha1() throws IOException {
     final byte[] buf = new byte[] {0, 1, 2, 3, 4, 5, 6, 7};
@@ -109,4 +155,33 @@ public class ZsyncUtilTest {
     assertNull(ZsyncUtil.getPath(URI.create("http://host/test")));
   }
 
+  /**
+   * Asserts that gzip and xz compressed streams are told apart by their magic bytes and decompressed
+   */
+  @Test
+  public void testDecompress() throws IOException {
+    final byte[] data = new byte[100000];
+    new Random(1).nextBytes(data);
+    final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(gzip)) {
+      out.write(data);
+    }
+    assertArrayEquals(data,
+        ByteStreams.toByteArray(ZsyncUtil.decompress(new ByteArrayInputStream(gzip.toByteArray()))));
+    final ByteArrayOutputStream xz = new ByteArrayOutputStream();
+    try (OutputStream out = new XZOutputStream(xz, new LZMA2Options())) {
+      out.write(data);
+    }
+    assertArrayEquals(data,
+        ByteStreams.toByteArray(ZsyncUtil.decompress(new ByteArrayInputStream(xz.toByteArray()))));
+  }
+
+  /**
+   * Asserts that uncompressed input is rejected
+   */
+  @Test(expected = IOException.class)
+  public void testDecompressUncompressed() throws IOException {
+    ZsyncUtil.decompress(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+  }
+
 }